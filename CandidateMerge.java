@@ -16,6 +16,8 @@ public class CandidateMerge <T extends Data<T>>{
     public CandidateMerge(State<T> rs, State<T> bs){
         redState = rs;
         blueState = bs;
+        score = null;
+        lowerBound = null;
     }
 
     //UTILITY
@@ -49,9 +51,29 @@ public class CandidateMerge <T extends Data<T>>{
         return blueState;
     }
 
+    public Double getScore() {
+        // the cached rank of the two states, null if not (or no longer) valid
+        return score;
+    }
+
+    public void setScore(Double score) {
+        this.score = score;
+    }
+
+    public Double getLowerBound() {
+        // a lower bound on the rank of the two states, null if not (or no longer) valid
+        return lowerBound;
+    }
+
+    public void setLowerBound(Double lowerBound) {
+        this.lowerBound = lowerBound;
+    }
+
 
     private State<T> redState;
     private State<T> blueState;
+    private Double score;
+    private Double lowerBound;
 
 
 }
@@ -9,19 +9,40 @@
 
 package RAI;
 
+import java.io.IOException;
+
 
 public interface Data <T extends Data> {
 
 
-    public void add(String[] values);
+    public void add(Future f);
 
     public void updateWith(T b);
 
+    // it removes one occurrence of f (a future added before)
+    public void remove(Future f);
+
     public  Double rankWith(T b);
 
+    // a cheap lower bound on rankWith(b): merges bounded above the best score found are never ranked
+    public Double rankLowerBound(T b);
+
+    // it may stop evaluating as soon as the outcome is decided
     public boolean isCompatibleWith(T b);
 
+    // rank, if not null, is rankWith(b) computed before (e.g. when selecting the merge) and it is reused.
+    // Compatibility must not grow with rank: a merge incompatible at a lower bound of its rank is incompatible
+    public boolean isCompatibleWith(T b, Double rank);
+
     public void dispose();
 
+    // number of (distinct) futures, the support of the statistics used for ranking
+    public int size();
+
+    // snapshots (see Hypothesis.checkpoint): read fills an instance just created by the DataBuilder
+    public void write(SnapshotOutput out) throws IOException;
+
+    public void read(SnapshotInput in) throws IOException;
+
 
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// Bounded, thread-safe memo of distances between pairs of futures, keyed by future identity.
+// Futures are immutable, hence a cached distance never gets stale. Distances are assumed to be
+// symmetric: (f1, f2) and (f2, f1) share the same entry. Eviction is LRU within each segment.
+// A cache is meant to be shared by all the Data instances using the same distance function.
+public class DistanceCache {
+
+
+    public DistanceCache(int capacity){
+        this.capacity = capacity;
+        segments = new Segment[SEGMENTS];
+        int segmentCapacity = Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i ++)
+            segments[i] = new Segment(segmentCapacity);
+        hits = new LongAdder();
+        misses = new LongAdder();
+    }
+
+    public Double get(Future f1, Future f2){
+        Key k = new Key(f1, f2);
+        Segment s = segmentFor(k);
+        Double d;
+        synchronized (s) {
+            d = s.get(k);
+        }
+        if (d == null)
+            misses.increment();
+        else
+            hits.increment();
+        return d;
+    }
+
+    public void put(Future f1, Future f2, double distance){
+        Key k = new Key(f1, f2);
+        Segment s = segmentFor(k);
+        synchronized (s) {
+            s.put(k, distance);
+        }
+    }
+
+    public int size(){
+        int res = 0;
+        for (Segment s : segments)
+            synchronized (s) {
+                res += s.size();
+            }
+        return res;
+    }
+
+    public void clear(){
+        for (Segment s : segments)
+            synchronized (s) {
+                s.clear();
+            }
+        hits.reset();
+        misses.reset();
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    public long getHits(){
+        return hits.sum();
+    }
+
+    public long getMisses(){
+        return misses.sum();
+    }
+
+    @Override
+    public String toString(){
+        return "DistanceCache[size " + size() + "/" + capacity + ", hits " + getHits() + ", misses " + getMisses() + "]";
+    }
+
+
+    // PRIVATE STUFF
+
+    private Segment segmentFor(Key k){
+        int h = k.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    private static class Key{
+
+        Key(Future f1, Future f2){
+            this.f1 = f1;
+            this.f2 = f2;
+            // symmetric on purpose
+            hash = System.identityHashCode(f1) ^ System.identityHashCode(f2);
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if (! (o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return (f1 == k.f1 && f2 == k.f2) || (f1 == k.f2 && f2 == k.f1);
+        }
+
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+
+        private final Future f1;
+        private final Future f2;
+        private final int hash;
+
+    }
+
+    private static class Segment extends LinkedHashMap<Key, Double>{
+
+        Segment(int capacity){
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Double> eldest){
+            return size() > capacity;
+        }
+
+        private final int capacity;
+        private static final long serialVersionUID = 1L;
+
+    }
+
+
+    private final int capacity;
+    private final Segment[] segments;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private static final int SEGMENTS = 16;
+
+
+}
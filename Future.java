@@ -10,52 +10,92 @@
 package RAI;
 
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.NoSuchElementException;
 
 
+// A Future is a read-only view over a slice of a trace.
+// All the suffixes of the same trace share the very same double[], hence
+// building the futures of a trace of length L costs O(L) and not O(L^2).
 public class Future implements Iterable<Double>, Comparable<Future>, Cloneable{
 
 
-    private Future(){
-        values = new LinkedList<>();
+    public Future(double[] values){
+        this(values, 0, values.length);
+    }
+
+    Future(double[] values, int offset, int length){
+        this.values = values;
+        this.offset = offset;
+        this.length = length;
+        hash = 0;
     }
 
     public static Future parse(String[] values){
-        Future f = new Future();
-        for (String v : values)
-            f.add(new Double(v));
-        return f;
+        double[] vs = new double[values.length];
+        for (int i = 0; i < values.length; i ++)
+            vs[i] = Double.parseDouble(values[i]);
+        return new Future(vs);
+    }
+
+    public Future suffix(int i){
+        // zero-copy view of the elements from position i onwards
+        if (i < 0 || i > length)
+            throw new IndexOutOfBoundsException("Suffix " + i + " of a future of size " + length);
+        return new Future(values, offset + i, length - i);
     }
 
     public String toString(){
-        String ret = "F[";
-        for (Double value : values)
-            ret += " " + value;
-        return ret + " ]";
+        StringBuilder ret = new StringBuilder("F[");
+        for (int i = 0; i < length; i ++)
+            ret.append(" ").append(values[offset + i]);
+        return ret.append(" ]").toString();
     }
 
     public Iterator<Double> iterator(){
-        return values.iterator();
-    }
+        return new Iterator<Double>() {
+
+            @Override
+            public boolean hasNext() {
+                return next < length;
+            }
 
-    public void add(Double v){
-        values.add(v);
+            @Override
+            public Double next() {
+                if (next >= length)
+                    throw new NoSuchElementException();
+                return values[offset + next ++];
+            }
+
+            private int next = 0;
+
+        };
     }
 
-    public void addFirst(Double v) {
-        values.addFirst(v);
+    public double get(int i){
+        return values[offset + i];
     }
 
     public int compareTo(Future f){
-        return values.getFirst().compareTo(f.getFirst());
+        return Double.compare(getFirst(), f.getFirst());
     }
 
-    public Double getFirst(){
-        return values.getFirst();
+    public double getFirst(){
+        if (length == 0)
+            throw new NoSuchElementException();
+        return values[offset];
     }
 
     public int size(){
-        return values.size();
+        return length;
+    }
+
+    double[] getTrace(){
+        // the whole trace this is a suffix (or slice) of
+        return values;
+    }
+
+    int getOffset(){
+        return offset;
     }
 
     @Override
@@ -67,22 +107,34 @@ public class Future implements Iterable<Double>, Comparable<Future>, Cloneable{
         if (!(o instanceof Future))
             return false;
         Future f = (Future) o;
-        if (values.size() != f.size())
+        if (length != f.length || hashCode() != f.hashCode())
             return false;
-        Iterator<Double> fi = values.iterator();
-        for (Double v : f)
-            if (! v.equals(fi.next()))
+        for (int i = 0; i < length; i ++)
+            if (Double.doubleToLongBits(values[offset + i]) != Double.doubleToLongBits(f.values[f.offset + i]))
                 return false;
         return true;
     }
 
     @Override
     public int hashCode(){
-        return values.hashCode();
+        // futures are immutable, hence the hash is computed once and cached
+        int h = hash;
+        if (h == 0 && length > 0) {
+            h = 1;
+            for (int i = 0; i < length; i ++) {
+                long bits = Double.doubleToLongBits(values[offset + i]);
+                h = 31 * h + (int) (bits ^ (bits >>> 32));
+            }
+            hash = h;
+        }
+        return h;
     }
 
 
-    private LinkedList<Double> values;
+    private final double[] values;
+    private final int offset;
+    private final int length;
+    private int hash;
 
 
 }
@@ -11,13 +11,26 @@ package RAI;
 
 import RAI.nnstrategy.NNData;
 import RAI.nnstrategy.NNDataBuilder;
+import RAI.transition_clustering.ClusteredTransition;
 import RAI.transition_clustering.Transition;
 import RAI.transition_clustering.UnclusteredTransition;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -34,52 +47,149 @@ public class Hypothesis <T extends Data<T>>{
     public Hypothesis(DataBuilder<T> dataBuilder){
         this.dataBuilder = dataBuilder;
         root = new State<>(this, dataBuilder.createInstance());
-        allowedMerges = new HashSet<>();
+        allowedMerges = new MergeQueue<>();
         redStates = new HashSet<>();
         blueStates = new HashSet<>();
+        ingestionThreads = 1;
+        keepValues = true;
+        clusteringPool = null;
+        clusteringTasks = new ArrayList<>();
+        clusteringStates = new ArrayList<>();
+        checkpointPath = null;
+        absorbed = new LinkedHashSet<>();
+        grown = new LinkedHashMap<>();
+        listener = LearningListener.NONE;
+        batchSize = 1;
+        timeBudget = 0L;
+        rankBudget = 0L;
+        redBudget = 0;
+        closingFrontier = false;
+        minSupport = 0;
+        parked = new TreeSet<>(Comparator.comparingInt(State::getId));
     }
 
-    private static String[] suffix(String[] s, int i){
-        String[] res = new String[s.length - i];
-        int j = 0;
-        for (int k =  0; k < s.length; k++){
-            if (k >= i){
-                res[j] = s[k];
-                j += 1;
+    public void setIngestionThreads(int threads){
+        // number of workers building the prefix tree, each one over a different chunk of the sample
+        ingestionThreads = threads;
+    }
+
+    public void setScoringThreads(int threads){
+        // number of threads ranking candidate merges concurrently
+        allowedMerges.setThreads(threads);
+    }
+
+    public void setClusteringThreads(int threads){
+        // when threads > 1, states promoted to red are clustered in background, concurrently with each other
+        // and with the lower bounds computed by rank(), up to the next merge selection: exact scores (poll),
+        // footprints and folds all come after awaitClustering.
+        // Their subtrees are white, hence disjoint and not involved in any candidate merge.
+        if (clusteringPool != null)
+            clusteringPool.shutdown();
+        clusteringPool = (threads > 1)?(new ForkJoinPool(threads)):(null);
+    }
+
+    public void shutdown(){
+        // threads ranking merges and clustering states are released: learning can go on, single threaded.
+        // Clusterings already started complete anyway
+        allowedMerges.shutdown();
+        if (clusteringPool != null)
+            clusteringPool.shutdown();
+        clusteringPool = null;
+    }
+
+    public void setBatchSize(int merges){
+        // number of merges selected at once, with the merge queue ranked just once for all of them (default 1).
+        // Each one is considered only if it does not interact with the merges accepted before it in the batch,
+        // otherwise it goes back to the queue: the merge order may differ from the one merge at a time order
+        batchSize = Math.max(1, merges);
+    }
+
+    public void setMinSupport(int futures){
+        // blue states with fewer futures than that are parked: they get no candidate merges, since tests mean
+        // little over so few futures. Once no merge is left, they are taken one at a time and merged into the red
+        // state they rank best with, if compatible, or promoted. A parked state getting enough futures (folds)
+        // gets its candidate merges. 0 means no parking
+        minSupport = futures;
+    }
+
+    public void setBudget(long millis, long rankEvaluations, int redStates){
+        // learning stops once it has taken millis, or ranked rankEvaluations merges, or got redStates red states
+        // (non positive values: no limit). Limits are checked before every merge selection and before every
+        // exact ranking (MergeQueue.poll, settle), so they are overrun by one merge, or one ranking per scoring
+        // thread, at most; bounding the merges of a selection is not interrupted. The blue states left, and the
+        // subtrees below them, are promoted to red then, in time linear in the number of those states (plus the
+        // clustering of their transitions): that part is not covered by the time limit
+        timeBudget = millis;
+        rankBudget = rankEvaluations;
+        redBudget = redStates;
+    }
+
+    public void setKeepTransitionValues(boolean keep){
+        // when false, transitions keep only count, mean, M2, min and max of their values (less memory)
+        keepValues = keep;
+    }
+
+    public void setListener(LearningListener listener){
+        // it receives the learning events (merges, promotions, phase durations)
+        this.listener = listener;
+        allowedMerges.setListener(listener);
+    }
+
+    public LearningListener getListener(){
+        return listener;
+    }
+
+    public void prefixTree(String trainingPath){
+        long start = System.nanoTime();
+        fromSample = true;
+        if (ingestionThreads > 1)
+            parallelPrefixTree(trainingPath);
+        else
+            try (SampleReader reader = new SampleReader(trainingPath)) {
+                new PrefixTreeBuilder<>(this, root, dataBuilder, keepValues).addAll(reader);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        }
-        return res;
+        listener.phaseCompleted(LearningListener.Phase.PREFIX_TREE, System.nanoTime() - start);
     }
 
-    private void prefixTree(String trainingPath){
-        try (BufferedReader br = new BufferedReader(new FileReader(trainingPath))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] values = line.split(" ");
-                State<T> state = root;
-                for (int i = 0; i < values.length; i++){
-                    double value = new Double(values[i]);
-                    if (state.getOutgoing(value) == null) {
-                        State<T> son = new State<>(this, dataBuilder.createInstance());
-                        Transition<T> newT = new UnclusteredTransition<>(state, son , value);
-                        state.addOutgoing(newT);
-                        newT.getDestination().addIngoing(newT);
+    private void parallelPrefixTree(String trainingPath){
+        // every worker builds a partial prefix tree out of its own chunk of the sample
+        // (the first one directly under root), then partial trees are merged in chunk order
+        ExecutorService pool = Executors.newFixedThreadPool(ingestionThreads);
+        try {
+            long size = SampleReader.size(trainingPath);
+            List<Callable<State<T>>> jobs = new ArrayList<>();
+            for (int i = 0; i < ingestionThreads; i ++) {
+                long start = size * i / ingestionThreads;
+                long end = size * (i + 1) / ingestionThreads;
+                State<T> partial = (i == 0)?(root):(new State<>(this, dataBuilder.createInstance()));
+                jobs.add(() -> {
+                    try (SampleReader reader = new SampleReader(trainingPath, start, end)) {
+                        new PrefixTreeBuilder<>(this, partial, dataBuilder, keepValues).addAll(reader);
                     }
-                    state.getData().add(suffix(values, i));
-                    // a questo punto ci sarà sicuro la transizione uscente per value
-                    state = state.getOutgoing(value).getDestination();
-                }
+                    return partial;
+                });
             }
-        } catch (IOException e) {
+            List<java.util.concurrent.Future<State<T>>> partials = pool.invokeAll(jobs);
+            PrefixTreeBuilder<T> builder = new PrefixTreeBuilder<>(this, root, dataBuilder, keepValues);
+            for (int i = 1; i < partials.size(); i ++)
+                builder.merge(partials.get(i).get());
+        } catch (IOException | InterruptedException | ExecutionException e) {
             e.printStackTrace();
+        } finally {
+            pool.shutdown();
         }
     }
 
     public void fromDOT(String modelPath){
         // READ A MODEL FROM A DOT FILE
+        fromSample = true;
         try (BufferedReader br = new BufferedReader(new FileReader(modelPath))) {
             String line;
             Map<Integer, State<T>> states = new HashMap<>();
+            // mus are set once all transitions are read, since adding transitions resets them
+            Map<State<T>, Double> mus = new HashMap<>();
             State<T> current;
             while ((line = br.readLine()) != null) {
                 Matcher lMatcher = stateRE.matcher(line);
@@ -90,7 +200,7 @@ public class Hypothesis <T extends Data<T>>{
                     if (! states.containsKey(sid))
                         states.put(sid, new State<>(this, null, sid));
                     current = states.get(sid);
-                    current.setMu(mu);
+                    mus.put(current, mu);
                     if (sid.equals(0))
                         root = current;
                 } else {
@@ -110,6 +220,7 @@ public class Hypothesis <T extends Data<T>>{
                     }
                 }
             }
+            mus.forEach(State::setMu);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -122,87 +233,614 @@ public class Hypothesis <T extends Data<T>>{
         if (s.isBlue()) {
             redStates.add(s);
             blueStates.remove(s);
+            parked.remove(s);
             // flushing possible couples where s plays the blue role
-            Iterator<CandidateMerge> pairs = s.getMergesIterator();
+            Iterator<CandidateMerge<T>> pairs = s.getMergesIterator();
             while (pairs.hasNext()){
-                CandidateMerge pair = pairs.next();
-                System.out.println("Popping " + pair);
+                CandidateMerge<T> pair = pairs.next();
                 pairs.remove();
                 allowedMerges.remove(pair);
             }
             // adding new couples where s plays the red role
-            for (State<T> blueState : blueStates) {
-                CandidateMerge<T> pair = new CandidateMerge<>(s, blueState);
-                System.out.println("Pushing " + pair);
-                s.addMerge(pair);
-                allowedMerges.add(pair);
-            }
+            // (none while closing the frontier)
+            if (! closingFrontier)
+                for (State<T> blueState : blueStates) {
+                    if (parked.contains(blueState))
+                        continue;
+                    CandidateMerge<T> pair = new CandidateMerge<>(s, blueState);
+                    s.addMerge(pair);
+                    allowedMerges.add(pair);
+                }
         }else if (s.isWhite()) {
             blueStates.add(s);
-            for (State<T> redState : redStates) {
-                CandidateMerge<T> pair = new CandidateMerge<>(redState, s);
-                System.out.println("Pushing " + pair);
-                s.addMerge(pair);
-                allowedMerges.add(pair);
-            }
+            if (s.getData().size() < minSupport)
+                // too few futures (see setMinSupport)
+                parked.add(s);
+            else if (! closingFrontier)
+                addMerges(s);
         }
     }
 
     public void notifyDisposal(State<T> s){
+        // white states are in no pair (and they may be disposed by background clusterings)
+        if (s.isWhite())
+            return;
         for (State<T> red : redStates) {
             CandidateMerge<T> pair = new CandidateMerge<>(red, s);
             //System.out.println("Popping " + pair);
             allowedMerges.remove(pair);
+            red.removeMerge(pair);
         }
         blueStates.remove(s);
+        parked.remove(s);
+    }
+
+    public void notifyUpdate(State<T> s){
+        // it gets called whenever the data of s changes: cached scores of the merges involving s are stale
+        if (s.isBlue()) {
+            if (parked.contains(s)) {
+                if (s.getData().size() >= minSupport) {
+                    parked.remove(s);
+                    addMerges(s);
+                }
+                return;
+            }
+            Iterator<CandidateMerge<T>> pairs = s.getMergesIterator();
+            while (pairs.hasNext())
+                allowedMerges.invalidate(pairs.next());
+        } else if (s.isRed()) {
+            for (State<T> blueState : blueStates)
+                allowedMerges.invalidate(new CandidateMerge<>(s, blueState));
+        }
+    }
+
+    private void addMerges(State<T> s){
+        // couples where the blue state s plays the blue role
+        for (State<T> redState : redStates) {
+            CandidateMerge<T> pair = new CandidateMerge<>(redState, s);
+            s.addMerge(pair);
+            allowedMerges.add(pair);
+        }
+    }
+
+    private void settle(State<T> s){
+        // s is parked and no merge is left: it is merged into the red state it ranks best with
+        // (ties broken by ids, as in the merge queue) if they are compatible, otherwise it is promoted.
+        // Red states are tried in order of lower bound: scoring stops once no bound can beat the best score,
+        // and red states the bound alone makes incompatible are skipped (scores only grow past their bounds)
+        parked.remove(s);
+        List<CandidateMerge<T>> pairs = new ArrayList<>(redStates.size());
+        for (State<T> redState : redStates)
+            pairs.add(new CandidateMerge<>(redState, s));
+        allowedMerges.bound(pairs);
+        pairs.sort(Comparator.comparingDouble((CandidateMerge<T> pair) -> pair.getLowerBound())
+                .thenComparingInt(pair -> pair.getRedState().getId()));
+        CandidateMerge<T> best = null;
+        for (CandidateMerge<T> pair : pairs) {
+            if (best != null && pair.getLowerBound() > best.getScore())
+                break;
+            if (! pair.getRedState().getData().isCompatibleWith(s.getData(), pair.getLowerBound()))
+                continue;
+            if (allowedMerges.isOverLimits()) {
+                // s is settled again after the limit, if ever
+                parked.add(s);
+                return;
+            }
+            Double score = allowedMerges.score(pair);
+            if (! pair.getRedState().getData().isCompatibleWith(s.getData(), score))
+                continue;
+            if (best == null || score < best.getScore() ||
+                    (score.equals(best.getScore()) && pair.getRedState().getId() < best.getRedState().getId()))
+                best = pair;
+        }
+        if (best == null) {
+            s.promote();
+            return;
+        }
+        listener.mergeConsidered(best);
+        acceptMerge(best);
     }
 
     // END OF CANDIDATE MERGES STUFF
 
-    public void minimize(String samplePath){
+    public LearningReport minimize(String samplePath){
         prefixTree(samplePath);
         root.promote().promote();
-        System.out.println("Prefix Tree created");
+        return learn();
+    }
+
+    public LearningReport resume(String snapshotPath){
+        // it goes on learning from a snapshot written by checkpoint. This hypothesis must be a new one,
+        // built with the same kind of DataBuilder as the one that wrote the snapshot (null if it cannot be read)
+        if (restore(snapshotPath))
+            return learn();
+        return null;
+    }
+
+    // ONLINE LEARNING STUFF
+
+    public void absorb(String samplePath){
+        // new traces for an already learned hypothesis: they are absorbed, then learning goes on
+        try (SampleReader reader = new SampleReader(samplePath)) {
+            double[] values;
+            while ((values = reader.next()) != null)
+                absorb(values);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        refine();
+    }
+
+    public void absorb(double[] trace){
+        // the trace is routed through the hypothesis: transitions count the values routed through them
+        // (red ones update their statistics too), and a white subtree grows where the trace falls off the model.
+        // Nothing is merged until refine. A model read by fromDOT keeps no futures to rank merges with,
+        // so it cannot absorb
+        if (root.getData() == null)
+            throw new IllegalStateException("A model read from a DOT file cannot absorb traces");
+        Future f = new Future(trace);
+        State<T> state = root;
+        for (int i = 0; i < trace.length; i ++) {
+            double value = trace[i];
+            state.getData().add(f.suffix(i));
+            if (! state.isWhite())
+                absorbed.add(state);
+            Transition<T> t = state.getOutgoing(value);
+            if (t == null) {
+                if (state.isRed() && ! grown.containsKey(state))
+                    grown.put(state, state.isLeaf());
+                State<T> son = new State<>(this, dataBuilder.createInstance());
+                t = new UnclusteredTransition<>(state, son, value, keepValues);
+                state.addOutgoing(t);
+                son.addIngoing(t);
+            } else {
+                state.addValue(t, value);
+            }
+            state = t.getDestination();
+        }
+    }
+
+    public void forget(double[] trace){
+        // the opposite of absorb, for a trace absorbed before: its futures and values are removed along its path.
+        // Transitions no trace goes through anymore are dropped, along with their subtree if it is not red;
+        // red states no trace reaches anymore are retired by refine (see retireUnreachable).
+        // Transitions of a prefix tree built from a sample (or of a DOT model) hold one value per path rather
+        // than one per trace, so such hypotheses cannot forget
+        if (fromSample)
+            throw new IllegalStateException("Only traces absorbed into a hypothesis built by absorb can be forgotten");
+        Future f = new Future(trace);
+        State<T> state = root;
+        for (int i = 0; i < trace.length; i ++) {
+            double value = trace[i];
+            state.getData().remove(f.suffix(i));
+            if (! state.isWhite())
+                absorbed.add(state);
+            Transition<T> t = state.getOutgoing(value);
+            if (t == null)
+                return;
+            state.removeValue(t, value);
+            State<T> son = t.getDestination();
+            if (t.size() == 0) {
+                state.removeOutgoing(t);
+                // the guards of a red state must cover all values again: refine expands them
+                if (state.isRed() && ! grown.containsKey(state))
+                    grown.put(state, state.isLeaf());
+                if (! son.isRed()) {
+                    son.disposeSubtree();
+                    return;
+                }
+                pruned = true;
+            }
+            state = son;
+        }
+    }
+
+    public LearningReport refine(){
+        // learning restricted to what absorb (and forget) have changed: merges involving states with changed futures
+        // get ranked again, and red states with new (or dropped) transitions get their guards and their new blue sons.
+        // A hypothesis built by absorb alone starts learning here
+        if (root.isWhite())
+            root.promote().promote();
+        if (pruned)
+            retireUnreachable();
+        for (State<T> s : absorbed)
+            notifyUpdate(s);
+        absorbed.clear();
+        for (Map.Entry<State<T>, Boolean> e : grown.entrySet())
+            e.getKey().regrow(e.getValue());
+        grown.clear();
+        return learn();
+    }
+
+    private void retireUnreachable(){
+        // red states forget has cut off from root are dropped, along with their merges and their blue subtrees:
+        // red states are as many as the paths of the traces still absorbed, whatever the length of the stream
+        pruned = false;
+        awaitClustering();
+        Set<State<T>> reached = new HashSet<>();
+        Deque<State<T>> toVisit = new ArrayDeque<>();
+        reached.add(root);
+        toVisit.push(root);
+        while (! toVisit.isEmpty()) {
+            Iterator<Transition<T>> iterator = toVisit.pop().getOutgoingIterator();
+            while (iterator.hasNext()) {
+                State<T> next = iterator.next().getDestination();
+                if (next.isRed() && reached.add(next))
+                    toVisit.push(next);
+            }
+        }
+        List<State<T>> retired = new ArrayList<>();
+        for (State<T> s : redStates)
+            if (! reached.contains(s))
+                retired.add(s);
+        for (State<T> s : retired) {
+            for (State<T> blue : blueStates) {
+                CandidateMerge<T> pair = new CandidateMerge<>(s, blue);
+                allowedMerges.remove(pair);
+                blue.removeMerge(pair);
+            }
+            List<Transition<T>> fanout = new ArrayList<>();
+            s.getOutgoingIterator().forEachRemaining(fanout::add);
+            for (Transition<T> t : fanout) {
+                State<T> son = t.getDestination();
+                s.removeOutgoing(t);
+                if (! son.isRed())
+                    son.disposeSubtree();
+            }
+            s.dispose();
+            redStates.remove(s);
+            absorbed.remove(s);
+            grown.remove(s);
+        }
+        // blue states left without merges are promoted, as if all their merges had been rejected
+        for (State<T> blue : new ArrayList<>(blueStates))
+            if (! blue.hasMerges() && ! parked.contains(blue))
+                blue.promote();
+    }
+
+    // END OF ONLINE LEARNING STUFF
+
+    private LearningReport learn(){
+        // red & blue loop
+        long start = System.nanoTime();
+        long lastCheckpoint = System.currentTimeMillis();
+        long rankStart = allowedMerges.getRankEvaluations();
+        LearningReport.Limit limit = LearningReport.Limit.NONE;
+        allowedMerges.setLimits(timeBudget * 1000000L, rankBudget);
         while (true){
-            CandidateMerge<T> pair = chooseBestMerge();
-            if (pair == null)
+            if (checkpointPath != null && System.currentTimeMillis() - lastCheckpoint >= checkpointInterval) {
+                checkpoint(checkpointPath);
+                lastCheckpoint = System.currentTimeMillis();
+            }
+            limit = getReachedLimit(start, rankStart);
+            if (limit != LearningReport.Limit.NONE)
                 break;
-            System.out.println("Considering couple " + pair);
+            List<CandidateMerge<T>> batch = chooseBestMerges();
+            if (batch.isEmpty()) {
+                // poll may have stopped scoring on a limit
+                limit = getReachedLimit(start, rankStart);
+                if (limit != LearningReport.Limit.NONE)
+                    break;
+                // parked states are settled one at a time, with merges (if any) in between
+                if (parked.isEmpty())
+                    break;
+                settle(parked.first());
+                continue;
+            }
+            if (batch.size() == 1)
+                considerMerge(batch.get(0));
+            else
+                considerBatch(batch);
+        }
+        allowedMerges.setLimits(0L, 0L);
+        int reds = redStates.size();
+        int blues = (limit == LearningReport.Limit.NONE)?(0):(blueStates.size());
+        int pending = (limit == LearningReport.Limit.NONE)?(0):(allowedMerges.size());
+        int promoted = (limit == LearningReport.Limit.NONE)?(0):(closeFrontier());
+        listener.phaseCompleted(LearningListener.Phase.LEARNING, System.nanoTime() - start);
+        return new LearningReport(limit, System.nanoTime() - start, allowedMerges.getRankEvaluations() - rankStart,
+                reds, blues, pending, promoted);
+    }
+
+    private LearningReport.Limit getReachedLimit(long start, long rankStart){
+        if (timeBudget > 0 && System.nanoTime() - start >= timeBudget * 1000000L)
+            return LearningReport.Limit.TIME;
+        if (rankBudget > 0 && allowedMerges.getRankEvaluations() - rankStart >= rankBudget)
+            return LearningReport.Limit.RANK_EVALUATIONS;
+        if (redBudget > 0 && redStates.size() >= redBudget)
+            return LearningReport.Limit.RED_STATES;
+        return LearningReport.Limit.NONE;
+    }
+
+    private int closeFrontier(){
+        // blue states are promoted to red, then their sons, down to the leaves: the hypothesis is a valid
+        // automaton without further merges. Merges left are dropped along with their blue states
+        closingFrontier = true;
+        int promoted = 0;
+        awaitClustering();
+        while (! blueStates.isEmpty()) {
+            for (State<T> s : new ArrayList<>(blueStates)) {
+                s.promote();
+                promoted ++;
+            }
+            awaitClustering();
+        }
+        closingFrontier = false;
+        return promoted;
+    }
+
+    private void considerMerge(CandidateMerge<T> pair){
+        listener.mergeConsidered(pair);
+        if (isCompatible(pair))
+            acceptMerge(pair);
+        else
+            rejectMerge(pair);
+    }
+
+    private boolean isCompatible(CandidateMerge<T> pair){
+        // the score the merge was selected with is the rank of the two states, not computed again
+        return pair.getRedState().getData().isCompatibleWith(pair.getBlueState().getData(), pair.getScore());
+    }
+
+    private void acceptMerge(CandidateMerge<T> pair){
+        long mergeStart = System.nanoTime();
+        pair.getRedState().mergeWith(pair.getBlueState());
+        listener.mergeAccepted(pair);
+        listener.phaseCompleted(LearningListener.Phase.MERGING, System.nanoTime() - mergeStart);
+    }
+
+    private void rejectMerge(CandidateMerge<T> pair){
+        State<T> bs = pair.getBlueState();
+        listener.mergeRejected(pair);
+        bs.removeMerge(pair);
+        if (! bs.hasMerges())
+            bs.promote();
+    }
+
+    private void considerBatch(List<CandidateMerge<T>> batch){
+        // merges are considered in order of score. Once the data of its states changed, a merge goes back
+        // to the queue to be ranked again. An accepted merge also goes back when the states it may change
+        // (see State.getMergeFootprint) were changed by the merges before it
+        Set<State<T>> changed = new HashSet<>();
+        for (CandidateMerge<T> pair : batch) {
             State<T> rs = pair.getRedState();
             State<T> bs = pair.getBlueState();
-            if (rs.getData().isCompatibleWith(bs.getData()))
-                rs.mergeWith(bs);
-            else {
-                System.out.println("Discarding " + pair);
-                bs.removeMerge(pair);
-                if (! bs.hasMerges())
-                    bs.promote();
+            if (! blueStates.contains(bs))
+                // bs has been merged or promoted: the merge is gone
+                continue;
+            if (changed.contains(rs) || changed.contains(bs)) {
+                allowedMerges.add(pair);
+                continue;
+            }
+            // states promoted by a rejection before must be clustered
+            awaitClustering();
+            listener.mergeConsidered(pair);
+            if (! isCompatible(pair)) {
+                rejectMerge(pair);
+                continue;
+            }
+            Set<State<T>> footprint = rs.getMergeFootprint(bs);
+            if (Collections.disjoint(footprint, changed)) {
+                acceptMerge(pair);
+                changed.addAll(footprint);
+            } else
+                allowedMerges.add(pair, pair.getScore());
+        }
+    }
+
+    private List<CandidateMerge<T>> chooseBestMerges(){
+        // only the merges invalidated since the last call get ranked again.
+        // Pending clusterings are a barrier: the sons of the new red states must be blue before selecting
+        allowedMerges.rank();
+        awaitClustering();
+        List<CandidateMerge<T>> batch = new ArrayList<>(batchSize);
+        while (batch.size() < batchSize) {
+            CandidateMerge<T> pair = allowedMerges.poll();
+            if (pair == null)
+                break;
+            batch.add(pair);
+        }
+        return batch;
+    }
+
+    // SNAPSHOTS STUFF
+
+    public void setCheckpoint(String path, long intervalMillis){
+        // while learning, a snapshot is written to path every intervalMillis (null path: no snapshots)
+        checkpointPath = path;
+        checkpointInterval = intervalMillis;
+    }
+
+    public void checkpoint(String path){
+        // snapshot of the learning state: written to a temporary file first, then moved over path,
+        // so that path always holds a whole snapshot
+        awaitClustering();
+        Path target = Paths.get(path).toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            try (SnapshotOutput out = new SnapshotOutput(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                writeSnapshot(out);
             }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-    private CandidateMerge<T> chooseBestMerge(){
-        Double bestScore = Double.POSITIVE_INFINITY;
-        CandidateMerge<T> bestMerge = null;
-        for (CandidateMerge<T> c : allowedMerges){
-            State<T> red = c.getRedState();
-            State<T> blue = c.getBlueState();
-            //Double score = red.getData().rankWith(blue.getData());
-            T dr = red.getData();
-            T db = blue.getData();
-            if (red.getId() == 0 && blue.getId() == 6130)
-                System.out.println("HOOK");
-            Double score = dr.rankWith(db);
-            System.out.println("Evaluated merge between <RED " + red.getId() + "> and <BLUE " + blue.getId() + "> with score " + score);
-            if (score < bestScore){
-                bestMerge = c;
-                bestScore = score;
+    private void writeSnapshot(SnapshotOutput out) throws IOException {
+        // states reachable from root (root first), then their outgoing transitions, then the candidate
+        // merges in the queue along with their cached scores. States are referred to by position.
+        List<State<T>> states = new ArrayList<>();
+        Map<State<T>, Integer> positions = new HashMap<>();
+        states.add(root);
+        positions.put(root, 0);
+        for (int i = 0; i < states.size(); i ++) {
+            Iterator<Transition<T>> iterator = states.get(i).getOutgoingIterator();
+            while (iterator.hasNext()) {
+                State<T> next = iterator.next().getDestination();
+                if (next != null && ! positions.containsKey(next)) {
+                    positions.put(next, states.size());
+                    states.add(next);
+                }
+            }
+        }
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeInt(State.getNextId());
+        out.writeBoolean(fromSample);
+        out.writeInt(states.size());
+        for (State<T> s : states) {
+            out.writeInt(s.getId());
+            out.writeByte(s.getColor().ordinal());
+            Double mu = s.getCachedMu();
+            out.writeBoolean(mu != null);
+            if (mu != null)
+                out.writeDouble(mu);
+            out.writeBoolean(s.getData() != null);
+            if (s.getData() != null)
+                s.getData().write(out);
+        }
+        for (State<T> s : states) {
+            List<Transition<T>> fanout = new ArrayList<>();
+            Iterator<Transition<T>> iterator = s.getOutgoingIterator();
+            while (iterator.hasNext()) {
+                Transition<T> t = iterator.next();
+                if (t.getDestination() != null)
+                    fanout.add(t);
+            }
+            out.writeInt(fanout.size());
+            for (Transition<T> t : fanout) {
+                out.writeInt(positions.get(t.getDestination()));
+                if (t instanceof ClusteredTransition)
+                    t = ((ClusteredTransition<T>) t).getTransition();
+                ((UnclusteredTransition<T>) t).write(out);
+            }
+        }
+        // candidate merges are the ones in the queue, sorted by state ids so that snapshots are reproducible
+        List<CandidateMerge<T>> pairs = new ArrayList<>();
+        for (CandidateMerge<T> pair : allowedMerges.getMerges())
+            if (positions.containsKey(pair.getRedState()) && positions.containsKey(pair.getBlueState()))
+                pairs.add(pair);
+        pairs.sort(Comparator.comparingInt((CandidateMerge<T> pair) -> pair.getRedState().getId())
+                .thenComparingInt(pair -> pair.getBlueState().getId()));
+        out.writeInt(pairs.size());
+        for (CandidateMerge<T> pair : pairs) {
+            out.writeInt(positions.get(pair.getRedState()));
+            out.writeInt(positions.get(pair.getBlueState()));
+            Double score = pair.getScore();
+            out.writeBoolean(score != null);
+            if (score != null)
+                out.writeDouble(score);
+        }
+    }
+
+    private boolean restore(String path){
+        try (SnapshotInput in = new SnapshotInput(new BufferedInputStream(Files.newInputStream(Paths.get(path))))) {
+            readSnapshot(in);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void readSnapshot(SnapshotInput in) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC)
+            throw new IOException("Not a RAI snapshot");
+        int version = in.readInt();
+        if (version != SNAPSHOT_VERSION)
+            throw new IOException("Unsupported version " + version + " of RAI snapshot");
+        int nextId = in.readInt();
+        fromSample = in.readBoolean();
+        int n = in.readInt();
+        List<State<T>> states = new ArrayList<>(n);
+        for (int i = 0; i < n; i ++) {
+            int id = in.readInt();
+            int ordinal = in.readByte();
+            if (ordinal < 0 || ordinal >= Color.values().length)
+                throw new IOException("Corrupted RAI snapshot");
+            Color color = Color.values()[ordinal];
+            Double mu = (in.readBoolean())?(in.readDouble()):(null);
+            T data = null;
+            if (in.readBoolean()) {
+                data = dataBuilder.createInstance();
+                data.read(in);
+            }
+            State<T> s = new State<>(this, data, id);
+            s.setColor(color);
+            if (mu != null)
+                s.setMu(mu);
+            if (color == Color.RED)
+                redStates.add(s);
+            else if (color == Color.BLUE)
+                blueStates.add(s);
+            states.add(s);
+        }
+        for (State<T> s : states) {
+            int m = in.readInt();
+            for (int j = 0; j < m; j ++) {
+                State<T> destination = states.get(in.readInt());
+                s.restoreOutgoing(UnclusteredTransition.read(in, s, destination));
             }
         }
-        if (bestMerge != null)
-            System.out.println("Popping " + bestMerge);
-        allowedMerges.remove(bestMerge);
-        return bestMerge;
+        int m = in.readInt();
+        for (int j = 0; j < m; j ++) {
+            State<T> red = states.get(in.readInt());
+            State<T> blue = states.get(in.readInt());
+            CandidateMerge<T> pair = new CandidateMerge<>(red, blue);
+            Double score = (in.readBoolean())?(in.readDouble()):(null);
+            blue.addMerge(pair);
+            allowedMerges.add(pair, score);
+        }
+        // parked states are the blue states without merges and too few futures
+        for (State<T> s : blueStates)
+            if (! s.hasMerges() && s.getData().size() < minSupport)
+                parked.add(s);
+        root = states.get(0);
+        State.reserveIds(nextId);
+    }
+
+    // END OF SNAPSHOTS STUFF
+
+    // BACKGROUND CLUSTERING STUFF
+
+    boolean scheduleClustering(State<T> s){
+        // it gets called by s on its promotion to red: false if s has to be clustered right away
+        if (clusteringPool == null)
+            return false;
+        clusteringTasks.add(clusteringPool.submit(s::cluster));
+        clusteringStates.add(s);
+        return true;
+    }
+
+    private void awaitClustering(){
+        for (ForkJoinTask<?> task : clusteringTasks)
+            task.join();
+        clusteringTasks.clear();
+        // sons are promoted in the same order as promotions happened
+        for (State<T> s : clusteringStates)
+            s.promoteSons();
+        clusteringStates.clear();
+    }
+
+    // END OF BACKGROUND CLUSTERING STUFF
+
+    public State<T> getRoot(){
+        return root;
+    }
+
+    public RegressionAutomaton compile(){
+        // immutable, flat form of the hypothesis for inference
+        return RegressionAutomaton.compile(root);
+    }
+
+    public void toBinary(String path){
+        // compact binary model, see RegressionAutomaton.fromBinary for loading it
+        try {
+            compile().toBinary(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public void toDot(String path){
@@ -237,8 +875,32 @@ public class Hypothesis <T extends Data<T>>{
     private State<T> root;
     private Set<State<T>> redStates;
     private Set<State<T>> blueStates;
-    private Set<CandidateMerge<T>> allowedMerges;
+    private int batchSize;
+    private long timeBudget;
+    private long rankBudget;
+    private int redBudget;
+    private boolean closingFrontier;
+    private int minSupport;
+    // blue states without merges (see setMinSupport), in order of id
+    private TreeSet<State<T>> parked;
+    private MergeQueue<T> allowedMerges;
     private final DataBuilder<T> dataBuilder;
+    private int ingestionThreads;
+    private boolean keepValues;
+    private ForkJoinPool clusteringPool;
+    private final List<ForkJoinTask<?>> clusteringTasks;
+    private final List<State<T>> clusteringStates;
+    private String checkpointPath;
+    private final Set<State<T>> absorbed;
+    private final Map<State<T>, Boolean> grown;
+    // true when forget cut some transition between red states
+    private boolean pruned;
+    // true when the hypothesis holds a prefix tree built from a sample (see forget)
+    private boolean fromSample;
+    private long checkpointInterval;
+    private static final int SNAPSHOT_MAGIC = 0x52414953;     // "RAIS"
+    private static final int SNAPSHOT_VERSION = 3;
+    private LearningListener listener;
     private static final Pattern stateRE = Pattern.compile(
             "^(?<sid>\\d+) \\[shape=(circle|doublecircle), label=\\\"\\d+\\\\n(?<mu>-?\\d*.?\\d+)\\\"\\];$");
     private static final Pattern transRE = Pattern.compile(
@@ -259,9 +921,12 @@ public class Hypothesis <T extends Data<T>>{
         Hypothesis<NNData> h = new Hypothesis<>(n);
         //VotingDataBuilder v = new VotingDataBuilder(0.12, 0.2);
         //Hypothesis<VotingData> h = new Hypothesis<>(v);
+        LearningStatistics statistics = new LearningStatistics();
+        h.setListener(statistics);
         h.minimize(train);
         h.toDot(dot);
         System.out.println("#states: " + h.redStates.size());
+        System.out.println(statistics);
     }
 
 
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI;
+
+
+// Receives the events of a learning run. Every method has an empty default, so implementations
+// override only what they need. Ranking and clustering events may come from the scoring and clustering
+// threads (see Hypothesis.setScoringThreads and setClusteringThreads), hence implementations must be thread safe.
+public interface LearningListener {
+
+
+    enum Phase {
+        PREFIX_TREE,    // building the prefix tree from the sample
+        RANKING,        // ranking the stale candidate merges before a selection
+        MERGING,        // merging (and folding) a blue state into a red one
+        CLUSTERING,     // learning the guards of a state being promoted to red
+        LEARNING        // the whole red & blue loop
+    }
+
+    // listener used when none is set: it ignores everything
+    LearningListener NONE = new LearningListener() {};
+
+    default void phaseCompleted(Phase phase, long nanos){}
+
+    default void mergeRanked(CandidateMerge<?> merge, double score){}
+
+    default void mergeConsidered(CandidateMerge<?> merge){}
+
+    default void mergeAccepted(CandidateMerge<?> merge){}
+
+    default void mergeRejected(CandidateMerge<?> merge){}
+
+    // s has just been promoted (its color is the new one)
+    default void statePromoted(State<?> s){}
+
+
+}
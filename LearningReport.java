@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI;
+
+
+// Outcome of a learning run (see Hypothesis.setBudget): whether it explored all the merges or it stopped
+// on a limit, in which case the blue states left (the unexplored frontier) were promoted to red.
+public class LearningReport {
+
+
+    // the limit that stopped learning, NONE if no merge was left
+    public enum Limit {NONE, TIME, RANK_EVALUATIONS, RED_STATES}
+
+
+    LearningReport(Limit limit, long elapsedNanos, long rankEvaluations, int redStates, int blueStates,
+                   int pendingMerges, int promotedStates){
+        this.limit = limit;
+        this.elapsedNanos = elapsedNanos;
+        this.rankEvaluations = rankEvaluations;
+        this.redStates = redStates;
+        this.blueStates = blueStates;
+        this.pendingMerges = pendingMerges;
+        this.promotedStates = promotedStates;
+    }
+
+    public boolean isComplete(){
+        return limit == Limit.NONE;
+    }
+
+    public Limit getLimit(){
+        return limit;
+    }
+
+    public long getElapsedNanos(){
+        return elapsedNanos;
+    }
+
+    public long getRankEvaluations(){
+        return rankEvaluations;
+    }
+
+    public int getRedStates(){
+        // red states when learning stopped, before promoting the frontier
+        return redStates;
+    }
+
+    public int getUnexploredBlueStates(){
+        // blue states when learning stopped (0 if complete)
+        return blueStates;
+    }
+
+    public int getUnexploredMerges(){
+        // candidate merges neither accepted nor rejected when learning stopped (0 if complete)
+        return pendingMerges;
+    }
+
+    public int getPromotedStates(){
+        // states promoted to red after learning stopped, the unexplored blue states and the subtrees below them
+        return promotedStates;
+    }
+
+    public String toString(){
+        return "limit: " + limit + ", elapsed ms: " + elapsedNanos / 1000000 + ", rank evaluations: " +
+                rankEvaluations + ", red states: " + redStates + ", unexplored blue states: " + blueStates +
+                ", unexplored merges: " + pendingMerges + ", promoted states: " + promotedStates;
+    }
+
+
+    private final Limit limit;
+    private final long elapsedNanos;
+    private final long rankEvaluations;
+    private final int redStates;
+    private final int blueStates;
+    private final int pendingMerges;
+    private final int promotedStates;
+
+
+}
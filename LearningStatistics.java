@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// Listener counting learning events and collecting, for every phase, a histogram of its durations.
+// Counters are lock free, so it can be used in production runs.
+public class LearningStatistics implements LearningListener {
+
+
+    public LearningStatistics(){
+        durations = new EnumMap<>(Phase.class);
+        for (Phase phase : Phase.values())
+            durations.put(phase, new Histogram());
+        ranks = new LongAdder();
+        considered = new LongAdder();
+        accepted = new LongAdder();
+        rejected = new LongAdder();
+        blues = new LongAdder();
+        reds = new LongAdder();
+    }
+
+    @Override
+    public void phaseCompleted(Phase phase, long nanos){
+        durations.get(phase).add(nanos);
+    }
+
+    @Override
+    public void mergeRanked(CandidateMerge<?> merge, double score){
+        ranks.increment();
+    }
+
+    @Override
+    public void mergeConsidered(CandidateMerge<?> merge){
+        considered.increment();
+    }
+
+    @Override
+    public void mergeAccepted(CandidateMerge<?> merge){
+        accepted.increment();
+    }
+
+    @Override
+    public void mergeRejected(CandidateMerge<?> merge){
+        rejected.increment();
+    }
+
+    @Override
+    public void statePromoted(State<?> s){
+        if (s.isRed())
+            reds.increment();
+        else
+            blues.increment();
+    }
+
+    public Histogram getDurations(Phase phase){
+        return durations.get(phase);
+    }
+
+    public long getRankCalls(){
+        return ranks.sum();
+    }
+
+    public long getConsideredMerges(){
+        return considered.sum();
+    }
+
+    public long getAcceptedMerges(){
+        return accepted.sum();
+    }
+
+    public long getRejectedMerges(){
+        return rejected.sum();
+    }
+
+    public long getBluePromotions(){
+        return blues.sum();
+    }
+
+    public long getRedPromotions(){
+        return reds.sum();
+    }
+
+    public String toString(){
+        String res = "rank calls: " + getRankCalls() + ", considered merges: " + getConsideredMerges() +
+                ", accepted: " + getAcceptedMerges() + ", rejected: " + getRejectedMerges() +
+                ", promotions to blue: " + getBluePromotions() + ", to red: " + getRedPromotions();
+        for (Phase phase : Phase.values())
+            res += "\n" + phase + ": " + durations.get(phase);
+        return res;
+    }
+
+
+    // Durations histogram with power of two buckets: bucket i counts durations in [2^i, 2^(i + 1)) nanoseconds
+    public static class Histogram {
+
+        public void add(long nanos){
+            long value = Math.max(nanos, 0L);
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(value, 1L)));
+            count.increment();
+            total.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        public long getCount(){
+            return count.sum();
+        }
+
+        public long getTotalNanos(){
+            return total.sum();
+        }
+
+        public long getMaxNanos(){
+            return max.get();
+        }
+
+        public double getMeanNanos(){
+            long n = getCount();
+            return (n == 0)?(0.):(getTotalNanos() / (double) n);
+        }
+
+        public long getBucket(int i){
+            return buckets.get(i);
+        }
+
+        public long getPercentileNanos(double p){
+            // upper bound of the bucket holding the p-th percentile (0 < p <= 1)
+            long n = getCount();
+            if (n == 0)
+                return 0L;
+            long rank = (long) Math.ceil(p * n);
+            long seen = 0L;
+            for (int i = 0; i < buckets.length(); i ++) {
+                seen += buckets.get(i);
+                if (seen >= rank)
+                    return Math.min((1L << (i + 1)) - 1, getMaxNanos());
+            }
+            return getMaxNanos();
+        }
+
+        public String toString(){
+            return String.format(Locale.ENGLISH, "count %d, total %.3f ms, mean %.3f ms, p50 <= %.3f ms, p99 <= %.3f ms, max %.3f ms",
+                    getCount(), getTotalNanos() / 1e6, getMeanNanos() / 1e6,
+                    getPercentileNanos(0.5) / 1e6, getPercentileNanos(0.99) / 1e6, getMaxNanos() / 1e6);
+        }
+
+        private final AtomicLongArray buckets = new AtomicLongArray(63);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+    }
+
+
+    private final Map<Phase, Histogram> durations;
+    private final LongAdder ranks;
+    private final LongAdder considered;
+    private final LongAdder accepted;
+    private final LongAdder rejected;
+    private final LongAdder blues;
+    private final LongAdder reds;
+
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// Indexed priority queue of the allowed candidate merges.
+// Scores are cached in the merges themselves: a merge gets (re)scored only when it is new
+// or when it has been invalidated because the data of one of its two states has changed.
+// New or invalidated merges get a cheap lower bound on their score first (Data.rankLowerBound),
+// and they are scored only once they get to the head of the queue (branch & bound): merges
+// bounded above the best score are never scored, and the chosen merge stays the same.
+public class MergeQueue <T extends Data<T>>{
+
+
+    public MergeQueue(){
+        merges = new HashMap<>();
+        ranked = new TreeSet<>(ORDER);
+        stale = new LinkedHashSet<>();
+        pool = null;
+        listener = LearningListener.NONE;
+        rankEvaluations = new LongAdder();
+        timeLimit = 0L;
+        rankLimit = 0L;
+    }
+
+    public void setListener(LearningListener listener){
+        this.listener = listener;
+    }
+
+    public void setThreads(int threads){
+        // stale merges are ranked concurrently when threads > 1. Ranking is read-only on the data,
+        // and the order (score, red id, blue id) is total, hence the chosen merge does not change.
+        shutdown();
+        pool = (threads > 1)?(new ForkJoinPool(threads)):(null);
+    }
+
+    public void shutdown(){
+        // threads ranking merges (if any) are released: merges get ranked by the caller from now on
+        if (pool != null)
+            pool.shutdown();
+        pool = null;
+    }
+
+    public void add(CandidateMerge<T> c){
+        add(c, null);
+    }
+
+    public void add(CandidateMerge<T> c, Double score){
+        // score is a known (cached) score of c, null if c has to be ranked
+        if (merges.containsKey(c))
+            return;
+        c.setScore(score);
+        c.setLowerBound(null);
+        merges.put(c, c);
+        if (score == null)
+            stale.add(c);
+        else
+            ranked.add(c);
+    }
+
+    public boolean remove(CandidateMerge<T> c){
+        CandidateMerge<T> stored = merges.remove(c);
+        if (stored == null)
+            return false;
+        if (! stale.remove(stored))
+            ranked.remove(stored);
+        return true;
+    }
+
+    public boolean contains(CandidateMerge<T> c){
+        return merges.containsKey(c);
+    }
+
+    public void invalidate(CandidateMerge<T> c){
+        CandidateMerge<T> stored = merges.get(c);
+        if (stored == null || stale.contains(stored))
+            return;
+        ranked.remove(stored);
+        stored.setScore(null);
+        stored.setLowerBound(null);
+        stale.add(stored);
+    }
+
+    public CandidateMerge<T> poll(){
+        // it pops the merge with the lowest score (ties broken by state ids).
+        // As before, merges scoring +Infinity (or NaN) are never chosen.
+        rank();
+        while (! ranked.isEmpty()) {
+            CandidateMerge<T> best = ranked.first();
+            if (best.getScore() == null && best.getLowerBound() < Double.POSITIVE_INFINITY) {
+                // the head is only bounded: it gets scored, and the order is checked again (unless over limits)
+                if (isOverLimits())
+                    return null;
+                scoreHead();
+                continue;
+            }
+            if (best.getScore() == null || ! (best.getScore() < Double.POSITIVE_INFINITY))
+                return null;
+            remove(best);
+            return best;
+        }
+        return null;
+    }
+
+    public void setLimits(long nanos, long rankEvaluations){
+        // poll stops scoring, and returns null, once nanos have passed since this call or rankEvaluations
+        // more merges have been ranked (non positive values: no limit)
+        limitsStart = System.nanoTime();
+        timeLimit = nanos;
+        rankLimit = (rankEvaluations > 0)?(getRankEvaluations() + rankEvaluations):(0L);
+    }
+
+    public boolean isOverLimits(){
+        return (timeLimit > 0 && System.nanoTime() - limitsStart >= timeLimit) ||
+                (rankLimit > 0 && getRankEvaluations() >= rankLimit);
+    }
+
+    public void bound(List<CandidateMerge<T>> merges){
+        // it bounds merges not in the queue right away (concurrently, as rank does)
+        evaluate(merges, false);
+    }
+
+    public Double score(CandidateMerge<T> c){
+        // it ranks c, a merge not in the queue, right away
+        evaluate(c, true);
+        return c.getScore();
+    }
+
+    public void rank(){
+        // it bounds the merges added or invalidated since the last call
+        if (! stale.isEmpty()) {
+            long start = System.nanoTime();
+            evaluate(new ArrayList<>(stale), false);
+            ranked.addAll(stale);
+            stale.clear();
+            listener.phaseCompleted(LearningListener.Phase.RANKING, System.nanoTime() - start);
+        }
+    }
+
+    public int size(){
+        return merges.size();
+    }
+
+    public Collection<CandidateMerge<T>> getMerges(){
+        // read-only view of the merges in the queue, scored or not
+        return Collections.unmodifiableSet(merges.keySet());
+    }
+
+    public long getRankEvaluations(){
+        // number of rankWith calls so far (lower bounds are not counted)
+        return rankEvaluations.sum();
+    }
+
+    public boolean isEmpty(){
+        return merges.isEmpty();
+    }
+
+
+    // PRIVATE STUFF
+
+    private void scoreHead(){
+        // it scores the bounded merges at the head of the queue, as many as the threads
+        long start = System.nanoTime();
+        int batch = (pool == null)?(1):(pool.getParallelism());
+        List<CandidateMerge<T>> head = new ArrayList<>(batch);
+        Iterator<CandidateMerge<T>> iterator = ranked.iterator();
+        while (head.size() < batch && iterator.hasNext()) {
+            CandidateMerge<T> c = iterator.next();
+            if (c.getScore() != null || ! (c.getLowerBound() < Double.POSITIVE_INFINITY))
+                break;
+            head.add(c);
+            iterator.remove();
+        }
+        evaluate(head, true);
+        ranked.addAll(head);
+        listener.phaseCompleted(LearningListener.Phase.RANKING, System.nanoTime() - start);
+    }
+
+    private void evaluate(List<CandidateMerge<T>> merges, boolean exact){
+        if (pool != null && merges.size() > 1)
+            pool.invoke(new ScoringTask(merges, 0, merges.size(), exact));
+        else
+            for (CandidateMerge<T> c : merges)
+                evaluate(c, exact);
+    }
+
+    private void evaluate(CandidateMerge<T> c, boolean exact){
+        T red = c.getRedState().getData();
+        T blue = c.getBlueState().getData();
+        if (exact) {
+            Double score = red.rankWith(blue);
+            rankEvaluations.increment();
+            c.setScore(score);
+            listener.mergeRanked(c, score);
+        } else
+            c.setLowerBound(red.rankLowerBound(blue));
+    }
+
+    private class ScoringTask extends RecursiveAction{
+
+        ScoringTask(List<CandidateMerge<T>> merges, int from, int to, boolean exact){
+            this.merges = merges;
+            this.from = from;
+            this.to = to;
+            this.exact = exact;
+        }
+
+        @Override
+        protected void compute() {
+            // every ranking is expensive on its own: split down to single merges
+            if (to - from == 1)
+                evaluate(merges.get(from), exact);
+            else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ScoringTask(merges, from, middle, exact), new ScoringTask(merges, middle, to, exact));
+            }
+        }
+
+        private final List<CandidateMerge<T>> merges;
+        private final int from;
+        private final int to;
+        private final boolean exact;
+        private static final long serialVersionUID = 1L;
+
+    }
+
+
+    private final Map<CandidateMerge<T>, CandidateMerge<T>> merges;
+    private final TreeSet<CandidateMerge<T>> ranked;
+    private final Set<CandidateMerge<T>> stale;
+    private ForkJoinPool pool;
+    private LearningListener listener;
+    private final LongAdder rankEvaluations;
+    private long limitsStart;
+    private long timeLimit;
+    private long rankLimit;
+    private static final Comparator<CandidateMerge<?>> ORDER = new Comparator<CandidateMerge<?>>() {
+        @Override
+        public int compare(CandidateMerge<?> c1, CandidateMerge<?> c2) {
+            // merges not scored yet are ordered by their lower bound
+            int res = Double.compare(key(c1), key(c2));
+            if (res == 0)
+                res = Integer.compare(c1.getRedState().getId(), c2.getRedState().getId());
+            if (res == 0)
+                res = Integer.compare(c1.getBlueState().getId(), c2.getBlueState().getId());
+            return res;
+        }
+
+        private double key(CandidateMerge<?> c) {
+            return (c.getScore() != null)?(c.getScore()):(c.getLowerBound());
+        }
+    };
+
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI;
+
+import RAI.transition_clustering.Transition;
+import RAI.transition_clustering.UnclusteredTransition;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+
+// Ingestion stage: it grows the prefix tree rooted in a given state, one trace at a time.
+public class PrefixTreeBuilder <T extends Data<T>>{
+
+
+    public PrefixTreeBuilder(Hypothesis<T> h, State<T> root, DataBuilder<T> dataBuilder){
+        this(h, root, dataBuilder, true);
+    }
+
+    public PrefixTreeBuilder(Hypothesis<T> h, State<T> root, DataBuilder<T> dataBuilder, boolean keepValues){
+        // keepValues false: new transitions keep summary statistics only
+        hypothesis = h;
+        this.root = root;
+        this.dataBuilder = dataBuilder;
+        this.keepValues = keepValues;
+    }
+
+    public void addAll(SampleReader reader) throws IOException{
+        double[] values;
+        while ((values = reader.next()) != null)
+            add(values);
+    }
+
+    public void add(double[] values){
+        // every suffix of the trace is a view over the same array
+        Future trace = new Future(values);
+        State<T> state = root;
+        for (int i = 0; i < values.length; i++){
+            double value = values[i];
+            Transition<T> t = state.getOutgoing(value);
+            if (t == null) {
+                State<T> son = new State<>(hypothesis, dataBuilder.createInstance());
+                t = new UnclusteredTransition<>(state, son, value, keepValues);
+                state.addOutgoing(t);
+                t.getDestination().addIngoing(t);
+            }
+            state.getData().add(trace.suffix(i));
+            state = t.getDestination();
+        }
+    }
+
+    public void merge(State<T> partial){
+        // grafts a prefix tree built by another builder (over a different portion of the sample)
+        // into the one rooted in root. Matching transitions are walked together and their futures
+        // are united, while transitions missing here are moved along with their whole subtree.
+        Deque<State<T>> targets = new ArrayDeque<>();
+        Deque<State<T>> sources = new ArrayDeque<>();
+        targets.push(root);
+        sources.push(partial);
+        while (! targets.isEmpty()) {
+            State<T> target = targets.pop();
+            State<T> source = sources.pop();
+            target.getData().updateWith(source.getData());
+            List<Transition<T>> missing = new ArrayList<>();
+            Iterator<Transition<T>> iterator = source.getOutgoingIterator();
+            while (iterator.hasNext()) {
+                Transition<T> t = iterator.next();
+                // prefix tree transitions are singletons, hence mu is the value they read
+                Transition<T> matching = target.getOutgoing(t.getMu());
+                if (matching == null)
+                    missing.add(t);
+                else {
+                    targets.push(matching.getDestination());
+                    sources.push(t.getDestination());
+                }
+            }
+            for (Transition<T> t : missing) {
+                source.removeOutgoing(t);
+                target.addOutgoing(t);
+            }
+        }
+    }
+
+
+    private final Hypothesis<T> hypothesis;
+    private final State<T> root;
+    private final DataBuilder<T> dataBuilder;
+    private final boolean keepValues;
+
+
+}
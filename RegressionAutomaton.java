@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI;
+
+import RAI.transition_clustering.Transition;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.IntStream;
+
+
+// Immutable runtime form of a learned hypothesis, meant for inference.
+// States are numbered from 0 (the root) in breadth first order. The outgoing transitions of state s
+// are the ones in [first[s], first[s + 1]), sorted by left guard, with guards accepting either the
+// singleton [left, right] (when left == right) or the interval ]left, right].
+// Instances can be shared among threads.
+public class RegressionAutomaton {
+
+
+    RegressionAutomaton(int[] first, double[] stateMu, double[] left, double[] right, int[] target,
+                        double[] mu, double[] std, int[] count){
+        this.first = first;
+        this.stateMu = stateMu;
+        this.left = left;
+        this.right = right;
+        this.target = target;
+        this.mu = mu;
+        this.std = std;
+        this.count = count;
+    }
+
+    public static <T extends Data<T>> RegressionAutomaton compile(State<T> root){
+        // numbering states
+        List<State<T>> states = new ArrayList<>();
+        Map<State<T>, Integer> ids = new HashMap<>();
+        states.add(root);
+        ids.put(root, 0);
+        for (int i = 0; i < states.size(); i ++) {
+            Iterator<Transition<T>> iterator = states.get(i).getOutgoingIterator();
+            while (iterator.hasNext()) {
+                State<T> next = iterator.next().getDestination();
+                if (next != null && ! ids.containsKey(next)) {
+                    ids.put(next, states.size());
+                    states.add(next);
+                }
+            }
+        }
+        // flattening transitions
+        int[] first = new int[states.size() + 1];
+        double[] stateMu = new double[states.size()];
+        List<Transition<T>> transitions = new ArrayList<>();
+        for (int i = 0; i < states.size(); i ++) {
+            first[i] = transitions.size();
+            stateMu[i] = states.get(i).getMu();
+            List<Transition<T>> fanout = new ArrayList<>();
+            Iterator<Transition<T>> iterator = states.get(i).getOutgoingIterator();
+            while (iterator.hasNext()) {
+                Transition<T> t = iterator.next();
+                if (t.getDestination() != null)
+                    fanout.add(t);
+            }
+            fanout.sort(new Comparator<Transition<T>>() {
+                @Override
+                public int compare(Transition<T> t1, Transition<T> t2) {
+                    return Double.compare(t1.getLeftGuard(), t2.getLeftGuard());
+                }
+            });
+            for (int j = 1; j < fanout.size(); j ++) {
+                Transition<T> p = fanout.get(j - 1);
+                Transition<T> n = fanout.get(j);
+                if (p.getRightGuard() > n.getLeftGuard() || p.getLeftGuard() == n.getLeftGuard() ||
+                        (p.getRightGuard() == n.getLeftGuard() && n.getLeftGuard() == n.getRightGuard()))
+                    throw new IllegalStateException("Overlapping guards in state " + states.get(i).getId() + ": " + p + " " + n);
+            }
+            transitions.addAll(fanout);
+        }
+        first[states.size()] = transitions.size();
+        int m = transitions.size();
+        double[] left = new double[m];
+        double[] right = new double[m];
+        int[] target = new int[m];
+        double[] mu = new double[m];
+        double[] std = new double[m];
+        int[] count = new int[m];
+        for (int j = 0; j < m; j ++) {
+            Transition<T> t = transitions.get(j);
+            left[j] = t.getLeftGuard();
+            right[j] = t.getRightGuard();
+            target[j] = ids.get(t.getDestination());
+            mu[j] = t.getMu();
+            std[j] = t.getStd();
+            count[j] = t.size();
+        }
+        return new RegressionAutomaton(first, stateMu, left, right, target, mu, std, count);
+    }
+
+    // BINARY FORMAT STUFF
+    // Big endian. Header: magic, version, number of states n, number of transitions m (ints). Then the arrays:
+    // first (n + 1 ints), state mu (n doubles), left guards, right guards, mu, std (m doubles each),
+    // destinations and counts (m ints each). Guards are stored as they are, infinities included.
+
+    public void toBinary(String path) throws IOException {
+        // written to a temporary file first, then moved over path
+        Path model = Paths.get(path).toAbsolutePath();
+        Path tmp = model.resolveSibling(model.getFileName() + ".tmp");
+        long size = binarySize(stateMu.length, left.length);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(stateMu.length).putInt(left.length);
+            putInts(buffer, first);
+            putDoubles(buffer, stateMu);
+            putDoubles(buffer, left);
+            putDoubles(buffer, right);
+            putDoubles(buffer, mu);
+            putDoubles(buffer, std);
+            putInts(buffer, target);
+            putInts(buffer, count);
+            buffer.force();
+        }
+        Files.move(tmp, model, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static RegressionAutomaton fromBinary(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE)
+                throw new IOException(path + " is not a RAI binary model");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC)
+                throw new IOException(path + " is not a RAI binary model");
+            int version = buffer.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported version " + version + " of RAI binary model " + path);
+            int n = buffer.getInt();
+            int m = buffer.getInt();
+            if (n < 1 || m < 0 || size != binarySize(n, m))
+                throw new IOException("Corrupted RAI binary model " + path);
+            int[] first = getInts(buffer, n + 1);
+            double[] stateMu = getDoubles(buffer, n);
+            double[] left = getDoubles(buffer, m);
+            double[] right = getDoubles(buffer, m);
+            double[] mu = getDoubles(buffer, m);
+            double[] std = getDoubles(buffer, m);
+            int[] target = getInts(buffer, m);
+            int[] count = getInts(buffer, m);
+            return new RegressionAutomaton(first, stateMu, left, right, target, mu, std, count);
+        }
+    }
+
+    // END OF BINARY FORMAT STUFF
+
+    public int getRoot(){
+        return 0;
+    }
+
+    public int getStatesCount(){
+        return stateMu.length;
+    }
+
+    public int getTransitionsCount(){
+        return left.length;
+    }
+
+    public double getMu(int state){
+        // expected next value when in state
+        return stateMu[state];
+    }
+
+    public int getFirstTransition(int state){
+        // outgoing transitions of state are the ones in [getFirstTransition(state), getFirstTransition(state + 1))
+        return first[state];
+    }
+
+    public double getLeftGuard(int t){
+        return left[t];
+    }
+
+    public double getRightGuard(int t){
+        return right[t];
+    }
+
+    public int getDestination(int t){
+        return target[t];
+    }
+
+    public double getTransitionMu(int t){
+        return mu[t];
+    }
+
+    public double getTransitionStd(int t){
+        return std[t];
+    }
+
+    public int getTransitionSize(int t){
+        // number of values observed by t
+        return count[t];
+    }
+
+    public int getTransition(int state, double value){
+        // index of the transition of state accepting value, -1 if there is none
+        int lo = first[state];
+        int hi = first[state + 1] - 1;
+        // last transition whose left guard is <= value
+        int floor = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (left[mid] <= value) {
+                floor = mid;
+                lo = mid + 1;
+            } else
+                hi = mid - 1;
+        }
+        if (floor < 0)
+            return -1;
+        if (accepts(floor, value))
+            return floor;
+        // value may be the (closed) right guard of the previous transition
+        if (floor > first[state] && accepts(floor - 1, value))
+            return floor - 1;
+        return -1;
+    }
+
+    public int next(int state, double value){
+        // state reached from state reading value, -1 if there is none
+        int t = getTransition(state, value);
+        return (t < 0)?(-1):(target[t]);
+    }
+
+    public double[] predict(double[] trace){
+        // res[i] is the prediction of trace[i] given the values before it, namely the mu of the state
+        // reached so far. Once the trace falls off the automaton, predictions are NaN.
+        double[] res = new double[trace.length];
+        int state = getRoot();
+        for (int i = 0; i < trace.length; i ++) {
+            if (state < 0) {
+                res[i] = Double.NaN;
+                continue;
+            }
+            res[i] = stateMu[state];
+            state = next(state, trace[i]);
+        }
+        return res;
+    }
+
+    public double[][] predict(List<double[]> traces){
+        // traces are processed in parallel, results keep their order
+        double[][] res = new double[traces.size()][];
+        IntStream.range(0, traces.size()).parallel().forEach(i -> res[i] = predict(traces.get(i)));
+        return res;
+    }
+
+
+    // PRIVATE STUFF
+
+    private static long binarySize(int n, int m){
+        return HEADER_SIZE + 4L * (n + 1) + 8L * n + 4L * 8 * m + 2L * 4 * m;
+    }
+
+    private static void putInts(ByteBuffer buffer, int[] values){
+        buffer.asIntBuffer().put(values);
+        buffer.position(buffer.position() + 4 * values.length);
+    }
+
+    private static void putDoubles(ByteBuffer buffer, double[] values){
+        buffer.asDoubleBuffer().put(values);
+        buffer.position(buffer.position() + 8 * values.length);
+    }
+
+    private static int[] getInts(ByteBuffer buffer, int n){
+        int[] res = new int[n];
+        buffer.asIntBuffer().get(res);
+        buffer.position(buffer.position() + 4 * n);
+        return res;
+    }
+
+    private static double[] getDoubles(ByteBuffer buffer, int n){
+        double[] res = new double[n];
+        buffer.asDoubleBuffer().get(res);
+        buffer.position(buffer.position() + 8 * n);
+        return res;
+    }
+
+    private boolean accepts(int t, double value){
+        if (left[t] == right[t])
+            return value == left[t];
+        return value > left[t] && value <= right[t];
+    }
+
+
+    final int[] first;
+    final double[] stateMu;
+    final double[] left;
+    final double[] right;
+    final int[] target;
+    final double[] mu;
+    final double[] std;
+    final int[] count;
+    private static final int MAGIC = 0x5241494d;     // "RAIM"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+
+// Reads a sample file (one trace per line, values separated by blanks)
+// straight from a FileChannel, chunk by chunk, parsing the numbers
+// without going through String objects.
+public class SampleReader implements Closeable{
+
+
+    public SampleReader(String path) throws IOException{
+        this(path, 0, Long.MAX_VALUE);
+    }
+
+    public SampleReader(String path, long start, long end) throws IOException{
+        // reads only the traces whose line begins in the byte range [start, end)
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        buffer.flip();
+        token = new byte[64];
+        tokenSize = 0;
+        trace = new double[64];
+        traceSize = 0;
+        eof = false;
+        this.end = end;
+        bufferStart = 0;
+        lineStart = 0;
+        if (start > 0) {
+            // the line containing start - 1 belongs to the previous range
+            channel.position(start - 1);
+            bufferStart = start - 1;
+            lineStart = start - 1;
+            skipLine();
+        }
+    }
+
+    public static long size(String path) throws IOException{
+        try (FileChannel c = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            return c.size();
+        }
+    }
+
+    public double[] next() throws IOException{
+        // returns the next trace, or null when the sample (or the range) is over. Empty lines are skipped.
+        while (true) {
+            if (lineStart >= end)
+                return null;
+            if (! buffer.hasRemaining() && ! fill()) {
+                endToken();
+                return endTrace();
+            }
+            byte[] bytes = buffer.array();
+            int pos = buffer.position();
+            int limit = buffer.limit();
+            while (pos < limit) {
+                byte c = bytes[pos ++];
+                if (c == '\n') {
+                    buffer.position(pos);
+                    lineStart = bufferStart + pos;
+                    endToken();
+                    double[] res = endTrace();
+                    if (res != null)
+                        return res;
+                    if (lineStart >= end)
+                        return null;
+                } else if (c == ' ' || c == '\t' || c == '\r') {
+                    endToken();
+                } else {
+                    if (tokenSize == token.length)
+                        token = Arrays.copyOf(token, tokenSize * 2);
+                    token[tokenSize ++] = c;
+                }
+            }
+            buffer.position(pos);
+        }
+    }
+
+    @Override
+    public void close() throws IOException{
+        channel.close();
+    }
+
+    public static double parse(byte[] token, int size){
+        // fast path for plain decimals with at most 15 significant digits and 22 fractional ones:
+        // both the mantissa and the power of ten are exact doubles, hence one division yields
+        // the correctly rounded value, exactly as Double.parseDouble does.
+        int i = 0;
+        boolean negative = false;
+        if (size > 0 && (token[0] == '-' || token[0] == '+')) {
+            negative = token[0] == '-';
+            i = 1;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = 0;
+        boolean dot = false;
+        for (; i < size; i ++) {
+            byte c = token[i];
+            if (c >= '0' && c <= '9') {
+                if (++ digits > MAX_DIGITS)
+                    return slowParse(token, size);
+                mantissa = mantissa * 10 + (c - '0');
+                if (dot)
+                    decimals += 1;
+            } else if (c == '.' && ! dot)
+                dot = true;
+            else
+                // exponents, Infinity, NaN and malformed tokens
+                return slowParse(token, size);
+        }
+        if (digits == 0 || decimals >= POWERS_OF_TEN.length)
+            return slowParse(token, size);
+        double value = (double) mantissa;
+        if (decimals > 0)
+            value /= POWERS_OF_TEN[decimals];
+        return (negative)?(- value):(value);
+    }
+
+
+    // PRIVATE STUFF
+
+    private void skipLine() throws IOException{
+        while (buffer.hasRemaining() || fill()) {
+            byte[] bytes = buffer.array();
+            int pos = buffer.position();
+            int limit = buffer.limit();
+            while (pos < limit)
+                if (bytes[pos ++] == '\n') {
+                    buffer.position(pos);
+                    lineStart = bufferStart + pos;
+                    return;
+                }
+            buffer.position(pos);
+        }
+        lineStart = Long.MAX_VALUE;
+    }
+
+    private boolean fill() throws IOException{
+        if (eof)
+            return false;
+        bufferStart += buffer.limit();
+        buffer.clear();
+        int read = 0;
+        while (read == 0)
+            read = channel.read(buffer);
+        buffer.flip();
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        return true;
+    }
+
+    private void endToken(){
+        if (tokenSize == 0)
+            return;
+        if (traceSize == trace.length)
+            trace = Arrays.copyOf(trace, traceSize * 2);
+        trace[traceSize ++] = parse(token, tokenSize);
+        tokenSize = 0;
+    }
+
+    private double[] endTrace(){
+        if (traceSize == 0)
+            return null;
+        double[] res = Arrays.copyOf(trace, traceSize);
+        traceSize = 0;
+        return res;
+    }
+
+    private static double slowParse(byte[] token, int size){
+        return Double.parseDouble(new String(token, 0, size, StandardCharsets.US_ASCII));
+    }
+
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private byte[] token;
+    private int tokenSize;
+    private double[] trace;
+    private int traceSize;
+    private boolean eof;
+    private final long end;
+    private long bufferStart;
+    private long lineStart;
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int MAX_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+
+}
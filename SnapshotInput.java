@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+// Stream a learning snapshot (see Hypothesis.resume) is read from. Futures read from the same trace
+// share its values, as they did when the snapshot was written.
+public class SnapshotInput extends DataInputStream {
+
+
+    public SnapshotInput(InputStream in){
+        super(in);
+        traces = new ArrayList<>();
+    }
+
+    public Future readFuture() throws IOException {
+        int id = readInt();
+        double[] trace;
+        if (id < 0) {
+            trace = new double[readInt()];
+            for (int i = 0; i < trace.length; i ++)
+                trace[i] = readDouble();
+            traces.add(trace);
+        } else if (id < traces.size())
+            trace = traces.get(id);
+        else
+            throw new IOException("Unknown trace " + id + " in snapshot");
+        int offset = readInt();
+        int length = readInt();
+        if (offset < 0 || length < 0 || offset + length > trace.length)
+            throw new IOException("Future out of its trace in snapshot");
+        return new Future(trace, offset, length);
+    }
+
+
+    private final List<double[]> traces;
+
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+
+// Stream a learning snapshot (see Hypothesis.checkpoint) is written to.
+// Futures are written as slices of their trace: every trace is written once, the first time one
+// of its suffixes shows up, and referred to by id afterwards.
+public class SnapshotOutput extends DataOutputStream {
+
+
+    public SnapshotOutput(OutputStream out){
+        super(out);
+        traces = new IdentityHashMap<>();
+    }
+
+    public void writeFuture(Future f) throws IOException {
+        Integer id = traces.get(f.getTrace());
+        if (id == null) {
+            writeInt(-1);
+            double[] trace = f.getTrace();
+            writeInt(trace.length);
+            for (double v : trace)
+                writeDouble(v);
+            traces.put(trace, traces.size());
+        } else
+            writeInt(id);
+        writeInt(f.getOffset());
+        writeInt(f.size());
+    }
+
+
+    private final Map<double[], Integer> traces;
+
+
+}
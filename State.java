@@ -17,15 +17,17 @@ package RAI;
 import RAI.transition_clustering.ClusteredTransition;
 import RAI.transition_clustering.Transition;
 import RAI.transition_clustering.TransitionMerge;
+import RAI.transition_clustering.TransitionMergeQueue;
 import com.google.common.collect.TreeMultiset;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class State <T extends Data<T>>{
 
 
     public State(Hypothesis<T> h, T d){
-        this(h, d, idGenerator ++);
+        this(h, d, idGenerator.getAndIncrement());
     }
 
     public State(Hypothesis<T> h, T d, int id){
@@ -37,6 +39,9 @@ public class State <T extends Data<T>>{
         data = d;
         color = Color.WHITE;
         pairs = new HashSet<>();
+        guards = new TreeMap<>(GUARD_ORDER);
+        guardsDirty = false;
+        guardsExact = true;
     }
 
     public int getId() {
@@ -49,11 +54,17 @@ public class State <T extends Data<T>>{
         else{
             mu = 0.;
             int size = 0;
-            for (Transition<T> t : outgoing)
-                for (Double v : t) {
-                    mu += v;
-                    size += 1;
-                }
+            for (Transition<T> t : outgoing) {
+                if (! t.keepsValues()) {
+                    // count weighted mean of the transition means
+                    mu += t.getMu() * t.size();
+                    size += t.size();
+                } else
+                    for (int i = 0; i < t.size(); i ++) {
+                        mu += t.get(i);
+                        size += 1;
+                    }
+            }
             if (size == 0)
                 mu = 0.;
             else
@@ -62,11 +73,60 @@ public class State <T extends Data<T>>{
         }
     }
 
+    Double getCachedMu(){
+        return mu;
+    }
+
+    void resetMu(){
+        // mu is computed again on next getMu: it gets called whenever outgoing transitions or their values change
+        mu = null;
+    }
+
+    void addValue(Transition<T> t, double value){
+        // value is routed through t, one of the outgoing transitions
+        t.add(value);
+        resetMu();
+    }
+
+    void removeValue(Transition<T> t, double value){
+        t.remove(value);
+        resetMu();
+    }
+
+    Color getColor(){
+        return color;
+    }
+
+    static int getNextId(){
+        return idGenerator.get();
+    }
+
+    static void reserveIds(int next){
+        // ids lower than next will not be given to new states
+        idGenerator.accumulateAndGet(next, Math::max);
+    }
+
+    void setColor(Color color){
+        // it does not notify anyone: meant for restoring snapshots
+        this.color = color;
+    }
+
     public void setMu(double mu){
         this.mu = mu;
     }
 
     public Transition<T> getOutgoing(double value) {
+        if (exactGuards()) {
+            // O(log k): at most one transition accepts value
+            Map.Entry<Double, Transition<T>> e = guards.floorEntry(value);
+            if (e != null && accepts(e.getValue(), value))
+                return e.getValue();
+            // value may be the (closed) right guard of the previous transition
+            e = (e == null)?(null):(guards.lowerEntry(e.getKey()));
+            if (e != null && accepts(e.getValue(), value))
+                return e.getValue();
+            return null;
+        }
         for (Transition<T> t : outgoing){
             // special case: singleton transitions
             if (t.getLeftGuard() == t.getRightGuard() && value == t.getLeftGuard())
@@ -99,27 +159,36 @@ public class State <T extends Data<T>>{
 
     public void addOutgoing(Transition<T> t){
         t.setSource(this);
+        resetMu();
         if (! outgoing.contains(t)) {
 //            outgoing.add(t);
 //            t.getDestination().addIngoing(t);
             boolean updated = false;
-            for (Transition<T> c : outgoing)
-                if (c.isAdiacenTo(t)) {
-                    c.addAll(t);
-                    if (c.getLeftGuard() >= t.getLeftGuard())
-                        c.setLeftGuard(t.getLeftGuard());
-                    if (c.getRightGuard() <= t.getRightGuard())
-                        c.setRightGuard(t.getRightGuard());
-                    updated = true;
-                    break;
-                }
+            Transition<T> c = getAdjacentOutgoing(t);
+            if (c != null) {
+                c.addAll(t);
+                if (c.getLeftGuard() >= t.getLeftGuard())
+                    c.setLeftGuard(t.getLeftGuard());
+                if (c.getRightGuard() <= t.getRightGuard())
+                    c.setRightGuard(t.getRightGuard());
+                invalidateGuards();
+                updated = true;
+            }
             if (! updated){
                 outgoing.add(t);
+                indexGuards(t);
                 t.getDestination().addIngoing(t);
             }
         }
     }
 
+    void restoreOutgoing(Transition<T> t){
+        // it adds t as it is, meant for restoring snapshots (no adjacency check)
+        outgoing.add(t);
+        indexGuards(t);
+        t.getDestination().ingoing.add(t);
+    }
+
     public void addIngoing(Transition<T> t){
         t.setDestination(this);
         if (! ingoing.contains(t)) {
@@ -127,12 +196,15 @@ public class State <T extends Data<T>>{
 //            t.getSource().addOutgoing(t);
             boolean updated = false;
             for (Transition<T> c : ingoing)
-                if (c.isAdiacenTo(t)){
+                // only transitions of the same source can become one
+                if (c.getSource() == t.getSource() && c.isAdiacenTo(t)){
                     c.addAll(t);
                     if (c.getLeftGuard() >= t.getLeftGuard())
                         c.setLeftGuard(t.getLeftGuard());
                     if (c.getRightGuard() <= t.getRightGuard())
                         c.setRightGuard(t.getRightGuard());
+                    c.getSource().invalidateGuards();
+                    c.getSource().resetMu();
                     updated = true;
                     break;
                 }
@@ -146,6 +218,11 @@ public class State <T extends Data<T>>{
     public void removeOutgoing(Transition t) {
         if (outgoing.contains(t)) {
             outgoing.remove(t);
+            resetMu();
+            if (! guardsDirty && guards.get(t.getLeftGuard()) == t)
+                guards.remove(t.getLeftGuard());
+            else
+                invalidateGuards();
             t.getDestination().removeIngoing(t);
         }
     }
@@ -160,10 +237,8 @@ public class State <T extends Data<T>>{
     public void mergeWith(State<T> s){
         // It merges s to this
         //--------------------------
-        System.out.println("going to merge " + this + " with " + s);
         // updating futures
-        data.updateWith(s.getData());
-        s.getData().dispose();
+        absorbData(s);
         // updating ingoing transitions
         Iterator<Transition<T>> inIterator = s.getIngoingIterator();
         while (inIterator.hasNext()) {
@@ -192,6 +267,32 @@ public class State <T extends Data<T>>{
         s.dispose();
     }
 
+    Set<State<T>> getMergeFootprint(State<T> s){
+        // the states mergeWith(s) may change: this, s and its parents, and the states the subtree of s
+        // gets folded into (white states of that subtree aside)
+        Set<State<T>> res = new HashSet<>();
+        res.add(this);
+        res.add(s);
+        for (Transition<T> t : s.ingoing)
+            res.add(t.getSource());
+        addFoldFootprint(s, res);
+        return res;
+    }
+
+    private void addFoldFootprint(State<T> s, Set<State<T>> res){
+        // as in fold, only a red non leaf state folds the sons of s into its own sons
+        if (! isRed() || isLeaf())
+            return;
+        for (Transition<T> t : s.outgoing) {
+            Transition<T> overlapped = getOutgoing(t.getMu());
+            if (overlapped == null)
+                continue;
+            State<T> ovDest = overlapped.getDestination();
+            res.add(ovDest);
+            ovDest.addFoldFootprint(t.getDestination(), res);
+        }
+    }
+
     private void fold(Transition<T> t) {
         //System.out.println("Folding " + t + " in " + this);
         // CASE 1: non red state
@@ -204,16 +305,20 @@ public class State <T extends Data<T>>{
             // updating guards (this become a sink state)
             t.setLeftGuard(Double.NEGATIVE_INFINITY);
             t.setRightGuard(Double.POSITIVE_INFINITY);
+            invalidateGuards();
+            // the new son of a red state is blue (mergeWith does it only for the sons of the merging state)
+            if (dest.isWhite())
+                dest.promote();
         } else {
             // CASE 3: red non leaf
             // find the overlapping transition.
             // Please note: t is a singleton transition, hence it represents just one value (mu)
             Transition<T> overlapped = getOutgoing(t.getMu());
             overlapped.addAll(t);
+            invalidateGuards();
+            resetMu();
             // updating futures in the new son
-            T destData = dest.getData();
-            overlapped.getDestination().getData().updateWith(destData);
-            destData.dispose();
+            overlapped.getDestination().absorbData(dest);
             // recursive calls to handle the subtrees rooted in t's destination
             Iterator<Transition<T>> outIter = dest.getOutgoingIterator();
             State<T> ovDest = overlapped.getDestination();
@@ -223,6 +328,13 @@ public class State <T extends Data<T>>{
         }
     }
 
+    private void absorbData(State<T> s){
+        // moves the futures of s into this, letting the hypothesis know that this has changed
+        data.updateWith(s.getData());
+        s.getData().dispose();
+        hypothesis.notifyUpdate(this);
+    }
+
     public String toString(){
         String res = "<" + color + " " + id + " [";
         for (Transition t : outgoing)
@@ -264,25 +376,63 @@ public class State <T extends Data<T>>{
     }
 
     public State promote(){
-        System.out.println("going to promote " + this);
         if (color == Color.WHITE) {
             hypothesis.notifyPromotion(this);
             color = Color.BLUE;
+            hypothesis.getListener().statePromoted(this);
         } else if (color == Color.BLUE) {
             // calling the cluster for learning guards over transitions
             hypothesis.notifyPromotion(this);
-            cluster();
-            // updating pairs
-            // NOTE: if I'm here it means that there are no merges anymore
-            // where this is involved (we merge red - blue couples)
-            // NOTE: since this is BLUE, all its sons are WHITE by definition
-            for (Transition t : outgoing)
-                t.getDestination().promote();
-            color = Color.RED;
+            if (hypothesis.scheduleClustering(this)) {
+                // clustering runs in background, sons get promoted by the hypothesis once it is over
+                color = Color.RED;
+            } else {
+                cluster();
+                promoteSons();
+                color = Color.RED;
+            }
+            hypothesis.getListener().statePromoted(this);
         }
         return this;
     }
 
+    void regrow(boolean wasLeaf){
+        // it gets called on a red state that got new outgoing transitions (see Hypothesis.absorb), or lost some
+        // (see Hypothesis.forget): a former leaf is clustered, otherwise guards are expanded around the transitions
+        // left. New sons become blue
+        resetMu();
+        if (wasLeaf)
+            cluster();
+        else
+            expandTransitions();
+        for (Transition<T> t : outgoing) {
+            State<T> son = t.getDestination();
+            if (son.isWhite())
+                son.promote();
+        }
+    }
+
+    void disposeSubtree(){
+        // this and all the states below it (a white subtree, hence a tree) are disposed
+        Deque<State<T>> toDispose = new ArrayDeque<>();
+        toDispose.push(this);
+        while (! toDispose.isEmpty()) {
+            State<T> s = toDispose.pop();
+            for (Transition<T> t : s.outgoing)
+                toDispose.push(t.getDestination());
+            s.dispose();
+        }
+    }
+
+    void promoteSons(){
+        // updating pairs
+        // NOTE: if I'm here it means that there are no merges anymore
+        // where this is involved (we merge red - blue couples)
+        // NOTE: since this is BLUE, all its sons are WHITE by definition
+        for (Transition t : outgoing)
+            t.getDestination().promote();
+    }
+
     public boolean isLeaf(){
         return outgoing.isEmpty();
     }
@@ -303,6 +453,7 @@ public class State <T extends Data<T>>{
 
     public void dispose(){
         outgoing.clear();
+        invalidateGuards();
         pairs.clear();
         data.dispose();
         // if this is blue, and it has been merged,
@@ -332,15 +483,15 @@ public class State <T extends Data<T>>{
         return color == Color.BLUE && ! pairs.isEmpty();
     }
 
-    public void addMerge(CandidateMerge pair){
+    public void addMerge(CandidateMerge<T> pair){
         pairs.add(pair);
     }
 
-    public void removeMerge(CandidateMerge pair){
+    public void removeMerge(CandidateMerge<T> pair){
         pairs.remove(pair);
     }
 
-    public Iterator<CandidateMerge> getMergesIterator(){
+    public Iterator<CandidateMerge<T>> getMergesIterator(){
         return pairs.iterator();
     }
 
@@ -349,17 +500,18 @@ public class State <T extends Data<T>>{
     // RED STATE SPECIFIC STUFF
 
     public void cluster() {
-        System.out.println("Clustering " + this);
-        PriorityQueue<TransitionMerge<T>> q = new PriorityQueue<>();
+        long start = System.nanoTime();
+        TransitionMergeQueue<T> q = new TransitionMergeQueue<>();
         // INIZIALIZATION
         inizializeClustering(q);
         // CLUSTERING
         performClustering(q);
         // EXPANDING TRANSITIONS
         expandTransitions();
+        hypothesis.getListener().phaseCompleted(LearningListener.Phase.CLUSTERING, System.nanoTime() - start);
     }
 
-    private void inizializeClustering(PriorityQueue<TransitionMerge<T>> q){
+    private void inizializeClustering(TransitionMergeQueue<T> q){
         Iterator<Transition<T>> fanout = outgoing.iterator();
         ClusteredTransition<T> prev = null;
         while (fanout.hasNext()) {
@@ -378,7 +530,7 @@ public class State <T extends Data<T>>{
         }
     }
 
-    private void performClustering(PriorityQueue<TransitionMerge<T>> q){
+    private void performClustering(TransitionMergeQueue<T> q){
         //System.out.println("Clustering transitions of " + this);
         while (q.size() >= MIN_TRANSITIONS){
             TransitionMerge<T> m = q.poll();
@@ -387,10 +539,9 @@ public class State <T extends Data<T>>{
             if (addToCluster(f, s)) {
                 TransitionMerge<T> tm = s.getNextMerge();
                 if (tm != null) {
-                    q.remove(tm);
                     tm.setFirst(f);
                     tm.updateScore();
-                    q.add(tm);
+                    q.update(tm);
                     f.setNextMerge(tm);
                 }
             }
@@ -416,6 +567,7 @@ public class State <T extends Data<T>>{
         }
         if (prev != null)
             prev.setRightGuard(Double.POSITIVE_INFINITY);
+        invalidateGuards();
     }
 
     public boolean addToCluster(Transition<T> cluster, Transition<T> t){
@@ -428,12 +580,12 @@ public class State <T extends Data<T>>{
         State<T> newDest = cluster.getDestination();
         State<T> oldDest = t.getDestination();
         // let's update futures
-        T oldData = oldDest.getData();
-        newDest.getData().updateWith(oldData);
-        oldData.dispose();
+        newDest.absorbData(oldDest);
         //let's update cluster
         oldDest.removeIngoing(t);
         cluster.addAll(t);
+        invalidateGuards();
+        resetMu();
         // let's update outgoing transitions (and all paths)
         Iterator<Transition<T>> oi = oldDest.getOutgoingIterator();
         while (oi.hasNext()) {
@@ -448,17 +600,95 @@ public class State <T extends Data<T>>{
 
     // END OF RED STATE SPECIFIC STUFF
 
+    // GUARDS INDEX STUFF
+    // outgoing transitions indexed by left guard. Lookups use the index only when the sets of values
+    // accepted by transitions are pairwise disjoint (always the case in prefix trees and in red states);
+    // otherwise they fall back to scanning outgoing in order.
+
+    void invalidateGuards(){
+        // it must be called whenever the guards of an outgoing transition change in place
+        guardsDirty = true;
+    }
+
+    private boolean exactGuards(){
+        if (guardsDirty) {
+            guards.clear();
+            guardsExact = true;
+            guardsDirty = false;
+            for (Transition<T> t : outgoing)
+                indexGuards(t);
+        }
+        return guardsExact;
+    }
+
+    private void indexGuards(Transition<T> t){
+        if (guardsDirty || ! guardsExact)
+            return;
+        double lg = t.getLeftGuard();
+        if (guards.containsKey(lg)) {
+            guardsExact = false;
+            return;
+        }
+        guards.put(lg, t);
+        Map.Entry<Double, Transition<T>> prev = guards.lowerEntry(lg);
+        Map.Entry<Double, Transition<T>> next = guards.higherEntry(lg);
+        if ((prev != null && ! disjoint(prev.getValue(), t)) || (next != null && ! disjoint(t, next.getValue())))
+            guardsExact = false;
+    }
+
+    private Transition<T> getAdjacentOutgoing(Transition<T> t){
+        // first transition (in guards order) adjacent to t
+        if (! exactGuards()) {
+            for (Transition<T> c : outgoing)
+                if (c.isAdiacenTo(t))
+                    return c;
+            return null;
+        }
+        // only the transitions ending where t begins, or beginning where t ends, can be adjacent to it
+        Map.Entry<Double, Transition<T>> e = guards.lowerEntry(t.getLeftGuard());
+        if (e != null && e.getValue().isAdiacenTo(t))
+            return e.getValue();
+        Transition<T> c = guards.get(t.getLeftGuard());
+        if (c != null && c.isAdiacenTo(t))
+            return c;
+        c = guards.get(t.getRightGuard());
+        if (c != null && c.isAdiacenTo(t))
+            return c;
+        return null;
+    }
+
+    private static boolean accepts(Transition<?> t, double value){
+        if (t.getLeftGuard() == t.getRightGuard())
+            return value == t.getLeftGuard();
+        return value > t.getLeftGuard() && value <= t.getRightGuard();
+    }
+
+    private static boolean disjoint(Transition<?> prev, Transition<?> next){
+        // prev.getLeftGuard() < next.getLeftGuard() here: since intervals are open on the left,
+        // they can only touch when next is not a singleton
+        return prev.getRightGuard() < next.getLeftGuard() ||
+                (prev.getRightGuard() == next.getLeftGuard() && next.getLeftGuard() != next.getRightGuard());
+    }
+
+    // END OF GUARDS INDEX STUFF
+
 
-    private static int idGenerator = 0;
+    // shared by the workers building prefix trees concurrently
+    private static final AtomicInteger idGenerator = new AtomicInteger();
     private int id;
     private Double mu;
     private TreeMultiset<Transition<T>> outgoing;
     private TreeMultiset<Transition<T>> ingoing;
     private Color color;
     private T data;
-    private Collection<CandidateMerge> pairs;
+    private Collection<CandidateMerge<T>> pairs;
     private Hypothesis<T> hypothesis;
+    private TreeMap<Double, Transition<T>> guards;
+    private boolean guardsDirty;
+    private boolean guardsExact;
     public static final int MIN_TRANSITIONS = 2;
+    // guards order: -0.0 and 0.0 are the same guard, as they are for ==
+    private static final Comparator<Double> GUARD_ORDER = (g1, g2) -> Double.compare(g1 + 0.0, g2 + 0.0);
 
 
 }
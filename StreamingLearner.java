@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+
+// Learner for unbounded streams of traces: the hypothesis is kept over a sliding window of the last
+// window traces. Every offered trace is absorbed, the oldest one is forgotten once the window is full,
+// and merging goes on (Hypothesis.refine) every refineEvery offered traces.
+// Memory depends on the window only: futures and values of forgotten traces go away along with the transitions
+// no trace goes through anymore, and red states no trace reaches are retired on refine. The hypothesis must be
+// built by absorb alone (see Hypothesis.forget). With Hypothesis.setKeepTransitionValues(false), forgetting a
+// value is O(1), otherwise it is linear in the number of values of the transition.
+public class StreamingLearner <T extends Data<T>>{
+
+
+    public StreamingLearner(Hypothesis<T> hypothesis, int window, int refineEvery){
+        if (window < 1 || refineEvery < 1)
+            throw new IllegalArgumentException("Window and refine period must be positive");
+        this.hypothesis = hypothesis;
+        this.window = window;
+        this.refineEvery = refineEvery;
+        traces = new ArrayDeque<>(window + 1);
+        offered = 0L;
+    }
+
+    public void offer(double[] trace){
+        // trace must not be changed afterwards: futures are views over it
+        hypothesis.absorb(trace);
+        traces.addLast(trace);
+        if (traces.size() > window)
+            hypothesis.forget(traces.removeFirst());
+        offered ++;
+        if (offered % refineEvery == 0)
+            hypothesis.refine();
+    }
+
+    public void refine(){
+        // merging over the current window, regardless of the refine period
+        hypothesis.refine();
+    }
+
+    public RegressionAutomaton compile(){
+        return hypothesis.compile();
+    }
+
+    public Hypothesis<T> getHypothesis(){
+        return hypothesis;
+    }
+
+    public int getWindowSize(){
+        // number of traces currently in the window
+        return traces.size();
+    }
+
+    public long getOffered(){
+        return offered;
+    }
+
+
+    private final Hypothesis<T> hypothesis;
+    private final int window;
+    private final int refineEvery;
+    private final Deque<double[]> traces;
+    private long offered;
+
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+// Uniform samples of tails, for approximate ranking of merges between states with many futures.
+// Samples are reservoir samples drawn with a fixed seed, hence rankings are reproducible.
+// A statistic estimated over samples is trusted only when it lies farther than margin standard errors
+// from the decision threshold; otherwise the caller goes on with the exact computation.
+// Instances are immutable and may be shared by all the Data instances of the same hypothesis.
+public class TailSampler {
+
+
+    public TailSampler(int size, long seed, double margin){
+        if (size < 1 || margin < 0.)
+            throw new IllegalArgumentException("Sample size must be positive and margin not negative");
+        this.size = size;
+        this.seed = seed;
+        this.margin = margin;
+    }
+
+    public boolean samples(int population){
+        // is it worth sampling a population of that size?
+        return population > size;
+    }
+
+    public <F> Iterable<F> sample(Iterable<F> population, int n){
+        // reservoir sampling (algorithm R) over the n elements of population, all of them when n is small enough
+        if (! samples(n))
+            return population;
+        Random random = new Random(seed);
+        List<F> reservoir = new ArrayList<>(size);
+        int i = 0;
+        for (F f : population) {
+            if (i < size)
+                reservoir.add(f);
+            else {
+                int j = random.nextInt(i + 1);
+                if (j < size)
+                    reservoir.set(j, f);
+            }
+            i ++;
+        }
+        return reservoir;
+    }
+
+    public static double estimate(int hits, int drawn, int population){
+        // estimated number of hits in the whole population
+        if (drawn == 0)
+            return 0.;
+        return population * (hits / (double) drawn);
+    }
+
+    public static double variance(int hits, int drawn, int population){
+        // variance of estimate(), without replacement: it is 0 when the whole population was drawn
+        if (drawn == 0 || drawn >= population)
+            return 0.;
+        // hits are shrunk towards 1/2 not to be too confident when (almost) all or none were drawn
+        double p = (hits + 1.) / (drawn + 2.);
+        double fpc = (population - drawn) / (double) (population - 1);
+        return population * (double) population * p * (1. - p) / drawn * fpc;
+    }
+
+    public boolean isFarFrom(double estimate, double stdError, double threshold){
+        // whether the estimate can be trusted to be on the same side of threshold as the exact value
+        return Math.abs(estimate - threshold) > margin * stdError;
+    }
+
+    public int getSize(){
+        return size;
+    }
+
+    public long getSeed(){
+        return seed;
+    }
+
+    public double getMargin(){
+        return margin;
+    }
+
+
+    private final int size;
+    private final long seed;
+    private final double margin;
+
+
+}
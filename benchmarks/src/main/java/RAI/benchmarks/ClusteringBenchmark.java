@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI.benchmarks;
+
+import RAI.Hypothesis;
+import RAI.nnstrategy.NNData;
+import RAI.nnstrategy.NNDataBuilder;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+// Cost of State.cluster, learning the guards over the outgoing transitions of the prefix tree root.
+// Clustering changes the tree, so every invocation gets a fresh prefix tree.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClusteringBenchmark {
+
+
+    @Setup(Level.Trial)
+    public void writeSample() throws IOException {
+        samplePath = new SyntheticTraces(traces, length, spread, SEED).writeTemp().toString();
+    }
+
+    @Setup(Level.Invocation)
+    public void buildPrefixTree(){
+        Hypothesis<NNData> h = new Hypothesis<>(new NNDataBuilder(ALPHA));
+        h.prefixTree(samplePath);
+        root = h.getRoot();
+    }
+
+    @Benchmark
+    public RAI.State<NNData> cluster(){
+        root.cluster();
+        return root;
+    }
+
+
+    @Param({"1000", "10000"})
+    public int traces;
+    @Param({"20"})
+    public int length;
+    @Param({"10", "100"})
+    public int spread;
+    private String samplePath;
+    private RAI.State<NNData> root;
+    private static final long SEED = 42L;
+    private static final double ALPHA = 0.05;
+
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI.benchmarks;
+
+import RAI.Hypothesis;
+import RAI.nnstrategy.NNData;
+import RAI.nnstrategy.NNDataBuilder;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+// Throughput of the prefix tree construction (Hypothesis.prefixTree), sequential and parallel.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IngestionBenchmark {
+
+
+    @Setup(Level.Trial)
+    public void writeSample() throws IOException {
+        samplePath = new SyntheticTraces(traces, length, spread, SEED).writeTemp().toString();
+    }
+
+    @Benchmark
+    public RAI.State<NNData> prefixTree(){
+        Hypothesis<NNData> h = new Hypothesis<>(new NNDataBuilder(ALPHA));
+        h.setIngestionThreads(threads);
+        h.prefixTree(samplePath);
+        return h.getRoot();
+    }
+
+
+    @Param({"1000", "10000"})
+    public int traces;
+    @Param({"20", "100"})
+    public int length;
+    @Param({"10", "100"})
+    public int spread;
+    @Param({"1", "4"})
+    public int threads;
+    private String samplePath;
+    private static final long SEED = 42L;
+    private static final double ALPHA = 0.05;
+
+
+}
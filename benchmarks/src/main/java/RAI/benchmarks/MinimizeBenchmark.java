@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI.benchmarks;
+
+import RAI.Data;
+import RAI.DataBuilder;
+import RAI.Hypothesis;
+import RAI.RegressionAutomaton;
+import RAI.nnstrategy.NNDataBuilder;
+import RAI.votingstrategy.VotingDataBuilder;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+// End to end learning (Hypothesis.minimize) with both strategies.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MinimizeBenchmark {
+
+
+    @Setup(Level.Trial)
+    public void writeSample() throws IOException {
+        samplePath = new SyntheticTraces(traces, length, spread, SEED).writeTemp().toString();
+    }
+
+    @Benchmark
+    public RegressionAutomaton minimize(){
+        if (strategy.equals("nn"))
+            return minimize(new NNDataBuilder(ALPHA));
+        return minimize(new VotingDataBuilder(VALUE_THRESHOLD, VOTING_THRESHOLD));
+    }
+
+
+    private <T extends Data<T>> RegressionAutomaton minimize(DataBuilder<T> builder){
+        Hypothesis<T> h = new Hypothesis<>(builder);
+        h.setMinSupport(minSupport);
+        h.minimize(samplePath);
+        return h.compile();
+    }
+
+
+    @Param({"nn", "voting"})
+    public String strategy;
+    @Param({"500", "2000"})
+    public int traces;
+    @Param({"20"})
+    public int length;
+    @Param({"5", "20"})
+    public int spread;
+    // blue states with fewer futures are parked (see Hypothesis.setMinSupport)
+    @Param({"0", "10"})
+    public int minSupport;
+    private String samplePath;
+    private static final long SEED = 42L;
+    private static final double ALPHA = 0.05;
+    private static final double VALUE_THRESHOLD = 0.5;
+    private static final double VOTING_THRESHOLD = 0.2;
+
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI.benchmarks;
+
+import RAI.TailSampler;
+import RAI.nnstrategy.NNData;
+import RAI.votingstrategy.VotingData;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+// Cost of ranking a candidate merge, as a function of the number of tails held by each state.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RankingBenchmark {
+
+
+    @Setup(Level.Trial)
+    public void fillData(){
+        // red and blue tails come from two different samples
+        TailSampler sampler = (sampleSize > 0)?(new TailSampler(sampleSize, SEED, MARGIN)):(null);
+        SyntheticTraces redSample = new SyntheticTraces(tails, LENGTH, spread, SEED);
+        SyntheticTraces blueSample = new SyntheticTraces(tails, LENGTH, spread, SEED + 1);
+        nnRed = SyntheticTraces.fill(new NNData(ALPHA, null, sampler), redSample.generate(), tails);
+        nnBlue = SyntheticTraces.fill(new NNData(ALPHA, null, sampler), blueSample.generate(), tails);
+        votingRed = SyntheticTraces.fill(new VotingData(VALUE_THRESHOLD, VOTING_THRESHOLD, null, sampler), redSample.generate(), tails);
+        votingBlue = SyntheticTraces.fill(new VotingData(VALUE_THRESHOLD, VOTING_THRESHOLD, null, sampler), blueSample.generate(), tails);
+    }
+
+    @Benchmark
+    public Double nnRankWith(){
+        return nnRed.rankWith(nnBlue);
+    }
+
+    @Benchmark
+    public Double votingRankWith(){
+        return votingRed.rankWith(votingBlue);
+    }
+
+
+    @Param({"100", "1000", "10000"})
+    public int tails;
+    @Param({"10", "100"})
+    public int spread;
+    // 0 ranks exactly
+    @Param({"0", "100"})
+    public int sampleSize;
+    private NNData nnRed;
+    private NNData nnBlue;
+    private VotingData votingRed;
+    private VotingData votingBlue;
+    private static final int LENGTH = 20;
+    private static final long SEED = 42L;
+    private static final double ALPHA = 0.05;
+    private static final double VALUE_THRESHOLD = 0.5;
+    private static final double VOTING_THRESHOLD = 0.2;
+    private static final double MARGIN = 3.;
+
+
+}
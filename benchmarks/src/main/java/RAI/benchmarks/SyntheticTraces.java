@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI.benchmarks;
+
+import RAI.Data;
+import RAI.Future;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+
+// Deterministic generator of synthetic samples: same parameters, same traces.
+// Every trace is a random walk over spread levels (0, 1, ..., spread - 1) plus a small gaussian noise,
+// so spread controls how many distinct values the learner sees at each step.
+public class SyntheticTraces {
+
+
+    public SyntheticTraces(int traces, int length, int spread, long seed){
+        this.traces = traces;
+        this.length = length;
+        this.spread = spread;
+        this.seed = seed;
+    }
+
+    public List<double[]> generate(){
+        Random random = new Random(seed);
+        List<double[]> res = new ArrayList<>(traces);
+        for (int i = 0; i < traces; i ++) {
+            double[] trace = new double[length];
+            int level = random.nextInt(spread);
+            for (int j = 0; j < length; j ++) {
+                level = Math.max(0, Math.min(spread - 1, level + random.nextInt(3) - 1));
+                // two decimals, as in the samples RAI is usually fed with
+                trace[j] = Math.round((level + NOISE * random.nextGaussian()) * 100.) / 100.;
+            }
+            res.add(trace);
+        }
+        return res;
+    }
+
+    public Path write(Path path) throws IOException {
+        // one trace per line, values separated by a space
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (double[] trace : generate()) {
+                for (int j = 0; j < trace.length; j ++) {
+                    if (j > 0)
+                        writer.write(' ');
+                    writer.write(String.format(Locale.ENGLISH, "%.2f", trace[j]));
+                }
+                writer.newLine();
+            }
+        }
+        return path;
+    }
+
+    public Path writeTemp() throws IOException {
+        Path path = Files.createTempFile("rai-" + traces + "x" + length + "-", ".txt");
+        path.toFile().deleteOnExit();
+        return write(path);
+    }
+
+    public static <T extends Data<T>> T fill(T data, List<double[]> traces, int futures){
+        // adds to data the first futures suffixes of traces (the ones a prefix tree state would hold)
+        int added = 0;
+        for (int j = 0; added < futures && j < traces.get(0).length; j ++) {
+            for (int i = 0; i < traces.size() && added < futures; i ++) {
+                data.add(new Future(traces.get(i)).suffix(j));
+                added ++;
+            }
+        }
+        if (added < futures)
+            throw new IllegalArgumentException("Not enough suffixes for " + futures + " futures");
+        return data;
+    }
+
+
+    private final int traces;
+    private final int length;
+    private final int spread;
+    private final long seed;
+    private static final double NOISE = 0.1;
+
+
+}
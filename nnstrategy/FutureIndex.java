@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI.nnstrategy;
+
+import RAI.Future;
+import java.util.*;
+
+
+// Set of futures bucketed by their first value.
+// The closeness of two futures is the mean of |f1(i) - f2(i)| over their common prefix, hence
+// |f1(0) - f2(0)| / min(|f1|, |f2|) is a lower bound on it. A Cursor visits buckets in order of
+// increasing distance from the first value of a query future, so that searches can stop as soon
+// as that bound gets larger than the distances they are looking for.
+public class FutureIndex implements Iterable<Future>{
+
+
+    public FutureIndex(){
+        buckets = new TreeMap<>();
+        futures = new HashSet<>();
+        maxSize = 0;
+    }
+
+    public boolean add(Future f){
+        if (! futures.add(f))
+            return false;
+        List<Future> bucket = buckets.get(f.getFirst());
+        if (bucket == null) {
+            bucket = new ArrayList<>(1);
+            buckets.put(f.getFirst(), bucket);
+        }
+        bucket.add(f);
+        if (f.size() > maxSize)
+            maxSize = f.size();
+        return true;
+    }
+
+    public boolean remove(Future f){
+        // maxSize is not decreased: it stays an upper bound
+        if (! futures.remove(f))
+            return false;
+        List<Future> bucket = buckets.get(f.getFirst());
+        bucket.remove(f);
+        if (bucket.isEmpty())
+            buckets.remove(f.getFirst());
+        return true;
+    }
+
+    public boolean contains(Future f){
+        return futures.contains(f);
+    }
+
+    public int size(){
+        return futures.size();
+    }
+
+    public boolean isEmpty(){
+        return futures.isEmpty();
+    }
+
+    public void clear(){
+        buckets.clear();
+        futures.clear();
+        maxSize = 0;
+    }
+
+    @Override
+    public Iterator<Future> iterator(){
+        return Collections.unmodifiableSet(futures).iterator();
+    }
+
+    public double getLowestFirst(){
+        // the lowest and highest first values (NaN sorts highest), of a non empty index
+        return buckets.firstKey();
+    }
+
+    public double getHighestFirst(){
+        return buckets.lastKey();
+    }
+
+    public int getMaxSize(){
+        // upper bound on the size of the futures in the index
+        return maxSize;
+    }
+
+    public Cursor cursor(Future f){
+        return new Cursor(f);
+    }
+
+
+    public class Cursor{
+
+        private Cursor(Future f){
+            first = f.getFirst();
+            // the common prefix of f and any indexed future is at most this long
+            prefix = Math.min(f.size(), maxSize);
+            up = buckets.tailMap(first, true).entrySet().iterator();
+            down = buckets.headMap(first, false).descendingMap().entrySet().iterator();
+            nextUp = (up.hasNext())?(up.next()):(null);
+            nextDown = (down.hasNext())?(down.next()):(null);
+        }
+
+        public boolean hasNext(){
+            return nextUp != null || nextDown != null;
+        }
+
+        public double lowerBound(){
+            // lower bound on the closeness between the query and any future not visited yet
+            return Math.min(gap(nextUp), gap(nextDown)) / prefix;
+        }
+
+        public List<Future> next(){
+            List<Future> res;
+            if (nextDown == null || (nextUp != null && gap(nextUp) <= gap(nextDown))) {
+                res = nextUp.getValue();
+                nextUp = (up.hasNext())?(up.next()):(null);
+            } else {
+                res = nextDown.getValue();
+                nextDown = (down.hasNext())?(down.next()):(null);
+            }
+            return res;
+        }
+
+        private double gap(Map.Entry<Double, List<Future>> bucket){
+            if (bucket == null)
+                return Double.POSITIVE_INFINITY;
+            double gap = Math.abs(bucket.getKey() - first);
+            // NaN values are never closer than anything: such buckets need no visit
+            return (Double.isNaN(gap))?(Double.POSITIVE_INFINITY):(gap);
+        }
+
+        private final double first;
+        private final int prefix;
+        private final Iterator<Map.Entry<Double, List<Future>>> up;
+        private final Iterator<Map.Entry<Double, List<Future>>> down;
+        private Map.Entry<Double, List<Future>> nextUp;
+        private Map.Entry<Double, List<Future>> nextDown;
+
+    }
+
+
+    private final TreeMap<Double, List<Future>> buckets;
+    private final Set<Future> futures;
+    private int maxSize;
+
+
+}
@@ -10,8 +10,13 @@
 package RAI.nnstrategy;
 
 import RAI.Data;
+import RAI.DistanceCache;
 import RAI.Future;
-
+import RAI.SnapshotInput;
+import RAI.SnapshotOutput;
+import RAI.TailSampler;
+import com.google.common.collect.TreeMultiset;
+import java.io.IOException;
 import java.util.*;
 
 
@@ -20,84 +25,186 @@ public class NNData implements Data<NNData> {
     // INTERFACE ALL CLIENTS SHOULD IMPLEMENT
 
     @Override
-    public void add(String[] values){
-        Future f = Future.parse(values);
-        // updating local distances
-        Double bestD = Double.POSITIVE_INFINITY;
-        for (Future rF : localDistances.keySet()){
-            Double nD = closeness(rF, f);
-            if (nD < localDistances.get(rF))
-                localDistances.put(rF, nD);
-            if (nD < bestD)
-                bestD = nD;
+    public void add(Future f){
+        if (tails.contains(f)) {
+            // a duplicate future lies at distance 0 from its twin, and it is not closer to anyone else
+            setLocalDistance(f, 0.);
+            copies.merge(f, 1, Integer::sum);
+            return;
+        }
+        // updating local distances: only the futures whose first value is close enough
+        // may either be the nearest neighbour of f or have f as their new nearest neighbour
+        double bestD = Double.POSITIVE_INFINITY;
+        FutureIndex.Cursor cursor = tails.cursor(f);
+        while (cursor.hasNext() && cursor.lowerBound() < Math.max(bestD, getMaxLocalDistance())) {
+            for (Future rF : cursor.next()) {
+                double nD = closeness(rF, f);
+                if (nD < localDistances.get(rF))
+                    setLocalDistance(rF, nD);
+                if (nD < bestD)
+                    bestD = nD;
+            }
         }
-        localDistances.put(f, bestD);
+        setLocalDistance(f, bestD);
         // updating futures
         tails.add(f);
     }
 
     @Override
     public void updateWith(NNData b){
-        // updating local distances
-        for (Future newF : b.tails){
-            Double bestD = Double.POSITIVE_INFINITY;
-            for (Future localF : localDistances.keySet()){
-                Double localD = localDistances.get(localF);
-                Double newD = closeness(localF, newF);
-                if (newD < localD)
-                    localDistances.put(localF, newD);
-                if (newD < bestD)
-                    bestD = newD;
+        // adding futures one at a time keeps local distances exact
+        for (Future newF : b.tails)
+            add(newF);
+        for (Map.Entry<Future, Integer> e : b.copies.entrySet())
+            copies.merge(e.getKey(), e.getValue(), Integer::sum);
+    }
+
+    @Override
+    public void remove(Future f){
+        Integer extra = copies.get(f);
+        if (extra != null) {
+            // one of the copies goes away: once f is alone, its twin is no longer at distance 0
+            if (extra > 1)
+                copies.put(f, extra - 1);
+            else {
+                copies.remove(f);
+                setLocalDistance(f, nearestDistance(f));
             }
-            localDistances.put(newF, bestD);
+            return;
+        }
+        if (! tails.remove(f))
+            return;
+        localValues.remove(localDistances.remove(f));
+        // futures whose nearest neighbour was f need a new one (they lie at their local distance from f)
+        FutureIndex.Cursor cursor = tails.cursor(f);
+        while (cursor.hasNext() && cursor.lowerBound() <= getMaxLocalDistance()) {
+            for (Future rF : cursor.next())
+                if (! copies.containsKey(rF) && closeness(rF, f) == localDistances.get(rF))
+                    setLocalDistance(rF, nearestDistance(rF));
         }
-        // updating futures
-        tails.addAll(b.tails);
     }
 
     @Override
     public Double rankWith(NNData b){
         if (tails.isEmpty() || b.tails.isEmpty())
             return 0.;
+        if (sampler != null && (sampler.samples(tails.size()) || sampler.samples(b.tails.size()))) {
+            Double rank = sampledRank(b);
+            if (rank != null)
+                return rank;
+        }
         int changes = getUnchanged(b) + b.getUnchanged(this);
         //System.out.println("Score: " + score + ", n: " + (r.getFutures() + b.getFutures()) + ", changes: " + changes);
-        double score = changes / (double) (tails.size() + b.tails.size());
+        return pnorm(zScore(changes, tails.size(), b.tails.size()));
+    }
+
+    @Override
+    public Double rankLowerBound(NNData b){
+        // the rank grows with the unchanged tails: only the ones no tail of the other state can get
+        // closer to (judging by the range of their first values) are counted. Samples are not bounded
+        if (tails.isEmpty() || b.tails.isEmpty() || sampler != null)
+            return 0.;
+        int changes = getSurelyUnchanged(b) + b.getSurelyUnchanged(this);
+        return pnorm(zScore(changes, tails.size(), b.tails.size()));
+    }
+
+    @Override
+    public boolean isCompatibleWith(NNData b){
+        if (tails.isEmpty() || b.tails.isEmpty())
+            return true;
+        // the rank grows with the number of unchanged tails: the merge is rejected from limit onwards,
+        // hence counting stops as soon as either limit is reached or it can no longer be reached
         int nr = tails.size();
         int nb = b.tails.size();
-        int n = nr + nb;
-        double lamr = nr / (double) n;
-        double lamb = nb / (double) n;
-        // double mu = (lamr * (nr - 1) + lamb * (nb - 1)) / n;
-        double mu = lamr * lamr + lamb * lamb;
-        double sigma = lamr * lamb + 4 * lamr * lamr * lamb * lamb;
-        double z = Math.sqrt(n) * (score - mu) / Math.sqrt(sigma);
-        // return pnorm(z) and not 1 - pnorm(z) because we know that RAI has a minimization function
-        // by minimizing pnorm(z) we maximize 1 - pnorm(z)
-        return pnorm(z);
+        int limit = getChangesLimit(nr, nb);
+        int changes = 0;
+        int left = nr + nb;
+        for (Map.Entry<Future, Double> e : localDistances.entrySet()) {
+            if (changes >= limit || changes + left < limit)
+                break;
+            if (! b.hasCloserThan(e.getKey(), e.getValue()))
+                changes += 1;
+            left --;
+        }
+        for (Map.Entry<Future, Double> e : b.localDistances.entrySet()) {
+            if (changes >= limit || changes + left < limit)
+                break;
+            if (! hasCloserThan(e.getKey(), e.getValue()))
+                changes += 1;
+            left --;
+        }
+        return changes < limit;
     }
 
     @Override
-    public boolean isCompatibleWith(NNData b){
+    public boolean isCompatibleWith(NNData b, Double rank){
+        if (rank == null)
+            return isCompatibleWith(b);
         if (tails.isEmpty() || b.tails.isEmpty())
             return true;
-        return 1. - rankWith(b) > alpha;
+        return 1. - rank > alpha;
     }
 
     @Override
     public void dispose(){
         localDistances.clear();
+        localValues.clear();
         tails.clear();
+        copies.clear();
+    }
+
+    @Override
+    public int size(){
+        return tails.size();
+    }
+
+    @Override
+    public void write(SnapshotOutput out) throws IOException {
+        // futures along with their local distances, which are not computed again on read, and copies
+        out.writeInt(tails.size());
+        for (Future f : tails) {
+            out.writeFuture(f);
+            out.writeDouble(localDistances.get(f));
+            out.writeInt(copies.getOrDefault(f, 0));
+        }
+    }
+
+    @Override
+    public void read(SnapshotInput in) throws IOException {
+        int n = in.readInt();
+        for (int i = 0; i < n; i ++) {
+            Future f = in.readFuture();
+            setLocalDistance(f, in.readDouble());
+            tails.add(f);
+            int extra = in.readInt();
+            if (extra > 0)
+                copies.put(f, extra);
+        }
     }
 
     // PUBLIC METHODS SPECIFIC FOR THIS CLASS
 
     public NNData(double alpha){
+        this(alpha, null);
+    }
+
+    public NNData(double alpha, DistanceCache cache){
+        this(alpha, cache, null);
+    }
+
+    public NNData(double alpha, DistanceCache cache, TailSampler sampler){
+        // cache may be null, or shared by all the NNData instances of the same hypothesis
+        // sampler may be null (exact ranking), or shared as well
+        this.cache = cache;
+        this.sampler = sampler;
         localDistances = new HashMap<>();
-        tails = new HashSet<>();
+        localValues = TreeMultiset.create();
+        tails = new FutureIndex();
+        copies = new HashMap<>();
         this.alpha = alpha;
     }
 
-    public Double closeness(Future f1, Future f2){
+    public double closeness(Future f1, Future f2){
         // prefix absolute distance
         if (f1 == null || f2 == null)
             return 0.;
@@ -114,42 +221,143 @@ public class NNData implements Data<NNData> {
 //            f2 = Future.parse(values);
 //        }
         // now bot f1 and f2 are not null
-        Iterator<Double> vs2 = f2.iterator();
-        Double result = 0.;
-        int n = 0;
-        for (Double v1 : f1){
-            if (! vs2.hasNext())
-                break;
-            Double v2 = vs2.next();
-            //result += (v1 - v2) * (v1 - v2);
-            result += Math.abs(v1 - v2);
-            n += 1;
+        if (cache == null)
+            return prefixDistance(f1, f2);
+        Double d = cache.get(f1, f2);
+        if (d == null) {
+            d = prefixDistance(f1, f2);
+            cache.put(f1, f2, d);
         }
+        return d;
+    }
+
+
+    // PRIVATE STUFF
+
+    private static double prefixDistance(Future f1, Future f2){
+        int n = Math.min(f1.size(), f2.size());
+        double result = 0.;
+        for (int i = 0; i < n; i ++)
+            //result += (v1 - v2) * (v1 - v2);
+            result += Math.abs(f1.get(i) - f2.get(i));
 //        if (n == 0)
 //            return Double.POSITIVE_INFINITY;
         return result / ((double) n);
     }
 
+    private static double zScore(double changes, int nr, int nb){
+        double score = changes / (double) (nr + nb);
+        int n = nr + nb;
+        double lamr = nr / (double) n;
+        double lamb = nb / (double) n;
+        // double mu = (lamr * (nr - 1) + lamb * (nb - 1)) / n;
+        double mu = lamr * lamr + lamb * lamb;
+        double sigma = lamr * lamb + 4 * lamr * lamr * lamb * lamb;
+        return Math.sqrt(n) * (score - mu) / Math.sqrt(sigma);
+    }
 
-    // PRIVATE STUFF
+    private int getChangesLimit(int nr, int nb){
+        // the lowest number of unchanged tails rejecting the merge (nr + nb + 1 if none does)
+        int low = 0;
+        int high = nr + nb + 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (1. - pnorm(zScore(mid, nr, nb)) > alpha)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private Double sampledRank(NNData b){
+        // unchanged tails estimated over samples of both sides, null when the estimate is too close to alpha
+        int nr = tails.size();
+        int nb = b.tails.size();
+        int hitsR = 0;
+        int drawnR = 0;
+        for (Future f : sampler.sample(tails, nr)) {
+            drawnR ++;
+            if (! b.hasCloserThan(f, localDistances.get(f)))
+                hitsR ++;
+        }
+        int hitsB = 0;
+        int drawnB = 0;
+        for (Future f : sampler.sample(b.tails, nb)) {
+            drawnB ++;
+            if (! hasCloserThan(f, b.localDistances.get(f)))
+                hitsB ++;
+        }
+        double changes = TailSampler.estimate(hitsR, drawnR, nr) + TailSampler.estimate(hitsB, drawnB, nb);
+        double stdError = Math.sqrt(TailSampler.variance(hitsR, drawnR, nr) + TailSampler.variance(hitsB, drawnB, nb));
+        // the rank grows with changes: both ends of the confidence interval must agree on compatibility
+        double low = pnorm(zScore(changes - sampler.getMargin() * stdError, nr, nb));
+        double high = pnorm(zScore(changes + sampler.getMargin() * stdError, nr, nb));
+        if ((1. - low > alpha) != (1. - high > alpha))
+            return null;
+        return pnorm(zScore(changes, nr, nb));
+    }
 
     private int getUnchanged(NNData b){
         // gets the number of tails whose elements are still in the same sample
         int res = 0;
-        for (Future rF : localDistances.keySet()){
-            Double lD = localDistances.get(rF);
-            boolean changed= false;
-            for (Future bF : b.tails)
-                if (closeness(rF, bF) < lD){
-                    changed = true;
-                    break;
-                }
-            if (! changed)
+        for (Map.Entry<Future, Double> e : localDistances.entrySet())
+            if (! b.hasCloserThan(e.getKey(), e.getValue()))
+                res += 1;
+        return res;
+    }
+
+    private int getSurelyUnchanged(NNData b){
+        // lower bound on getUnchanged(b), in linear time: |f(0) - t(0)| / min(|f|, |t|) is a lower bound on
+        // the closeness of f and any tail t of b, as in FutureIndex
+        double lowest = b.tails.getLowestFirst();
+        double highest = b.tails.getHighestFirst();
+        int res = 0;
+        for (Map.Entry<Future, Double> e : localDistances.entrySet()) {
+            Future f = e.getKey();
+            double first = f.getFirst();
+            // NaN gaps are never counted
+            double gap = Math.max(0., Math.max(lowest - first, first - highest));
+            if (gap / Math.min(f.size(), b.tails.getMaxSize()) >= e.getValue())
                 res += 1;
         }
         return res;
     }
 
+    private boolean hasCloserThan(Future f, double radius){
+        // is there any tail whose closeness to f is below radius?
+        FutureIndex.Cursor cursor = tails.cursor(f);
+        while (cursor.hasNext() && cursor.lowerBound() < radius)
+            for (Future t : cursor.next())
+                if (closeness(f, t) < radius)
+                    return true;
+        return false;
+    }
+
+    private double nearestDistance(Future f){
+        // closeness between f (in tails) and its nearest neighbour
+        double bestD = Double.POSITIVE_INFINITY;
+        FutureIndex.Cursor cursor = tails.cursor(f);
+        while (cursor.hasNext() && cursor.lowerBound() < bestD)
+            for (Future rF : cursor.next())
+                if (! rF.equals(f))
+                    bestD = Math.min(bestD, closeness(rF, f));
+        return bestD;
+    }
+
+    private void setLocalDistance(Future f, double d){
+        Double old = localDistances.put(f, d);
+        if (old != null)
+            localValues.remove(old);
+        localValues.add(d);
+    }
+
+    private double getMaxLocalDistance(){
+        if (localValues.isEmpty())
+            return Double.NEGATIVE_INFINITY;
+        return localValues.lastEntry().getElement();
+    }
+
     private static double dnorm(double x){
         // standard normal (N(0,1)) distribution function
         return 1 / Math.sqrt(2 * Math.PI) * Math.exp(- 0.5 * x * x);
@@ -178,7 +386,13 @@ public class NNData implements Data<NNData> {
 
 
     private Map<Future, Double> localDistances;
-    private Set<Future> tails;
+    // multiset of the values in localDistances, to know the largest one
+    private TreeMultiset<Double> localValues;
+    private FutureIndex tails;
+    // duplicates of futures in tails (just their number beyond the first one)
+    private Map<Future, Integer> copies;
     private Double alpha;
+    private final DistanceCache cache;
+    private final TailSampler sampler;
 
 }
@@ -10,20 +10,45 @@
 package RAI.nnstrategy;
 
 import RAI.DataBuilder;
+import RAI.DistanceCache;
+import RAI.TailSampler;
 
 
 public class NNDataBuilder implements DataBuilder<NNData> {
 
     public NNDataBuilder(double alpha){
+        this(alpha, 0);
+    }
+
+    public NNDataBuilder(double alpha, int cacheSize){
+        // with cacheSize > 0, all the instances share a cache of distances between futures
         this.alpha = alpha;
+        cache = (cacheSize > 0)?(new DistanceCache(cacheSize)):(null);
     }
 
     @Override
     public NNData createInstance() {
-        return new NNData(alpha);
+        return new NNData(alpha, cache, sampler);
+    }
+
+    public void setSampling(int sampleSize, long seed){
+        setSampling(sampleSize, seed, DEFAULT_MARGIN);
+    }
+
+    public void setSampling(int sampleSize, long seed, double margin){
+        // merges are ranked over samples of at most sampleSize tails per state, and exactly when the
+        // estimate lies within margin standard errors from alpha. It affects the instances created afterwards
+        sampler = (sampleSize > 0)?(new TailSampler(sampleSize, seed, margin)):(null);
+    }
+
+    public DistanceCache getCache() {
+        return cache;
     }
 
 
     private double alpha;
+    private DistanceCache cache;
+    private TailSampler sampler;
+    private static final double DEFAULT_MARGIN = 3.;
 
 }
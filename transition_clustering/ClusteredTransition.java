@@ -90,6 +90,26 @@ public class ClusteredTransition<T extends Data<T>> implements Transition<T>{
         transition.add(v);
     }
 
+    @Override
+    public boolean remove(double v) {
+        return transition.remove(v);
+    }
+
+    @Override
+    public int size() {
+        return transition.size();
+    }
+
+    @Override
+    public double get(int i) {
+        return transition.get(i);
+    }
+
+    @Override
+    public boolean keepsValues() {
+        return transition.keepsValues();
+    }
+
     @Override
     public boolean isAdiacenTo(Transition<T> t){
         return transition.isAdiacenTo(t);
@@ -125,6 +145,10 @@ public class ClusteredTransition<T extends Data<T>> implements Transition<T>{
         return transition.toString();
     }
 
+    public Transition<T> getTransition(){
+        return transition;
+    }
+
     public void setPreviousMerge(TransitionMerge<T> m){
         previous = m;
     }
@@ -41,6 +41,18 @@ public interface Transition<T extends Data<T>> extends Iterable<Double>, Compara
 
     void add(Double v);
 
+    // it removes one occurrence of v (false if v was not observed). Guards are left as they are
+    boolean remove(double v);
+
+    // number of values observed
+    int size();
+
+    // i-th value observed, if values are kept
+    double get(int i);
+
+    // false when only summary statistics are kept
+    boolean keepsValues();
+
     boolean isAdiacenTo(Transition<T> t);
 
     boolean isOverlappedBy(Transition<T> t);
@@ -19,6 +19,7 @@ public class TransitionMerge<T extends Data<T>> implements Comparable<Transition
         first = f;
         second = s;
         score = f.getCloseness(s);
+        heapIndex = -1;
     }
 
     public ClusteredTransition<T> getFirst() {
@@ -42,7 +43,13 @@ public class TransitionMerge<T extends Data<T>> implements Comparable<Transition
         if ((first.equals(o.getFirst()) && second.equals(o.getSecond())) ||
         (first.equals(o.getSecond())) && second.equals(o.getFirst()))
             return 0;
-        return (score > o.getScore())?(1):(-1);
+        int res = Double.compare(score, o.getScore());
+        // ties: leftmost merge first (guards of the first transitions are disjoint within a state)
+        if (res == 0)
+            res = Double.compare(first.getLeftGuard(), o.getFirst().getLeftGuard());
+        if (res == 0)
+            res = Double.compare(second.getLeftGuard(), o.getSecond().getLeftGuard());
+        return res;
     }
 
     @Override
@@ -75,9 +82,19 @@ public class TransitionMerge<T extends Data<T>> implements Comparable<Transition
         this.second = second;
     }
 
+    int getHeapIndex(){
+        return heapIndex;
+    }
+
+    void setHeapIndex(int i){
+        heapIndex = i;
+    }
+
     private ClusteredTransition<T> first;
     private ClusteredTransition<T> second;
     private double score;
+    // position in the TransitionMergeQueue holding this merge, -1 if none
+    private int heapIndex;
 
 
 }
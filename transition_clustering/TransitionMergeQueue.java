@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016, Gaetano Pellegrino
+ *
+ * This program is released under the GNU General Public License
+ * Info online: http://www.gnu.org/licenses/quick-guide-gplv3.html
+ * Or in the file: LICENSE
+ * For information/questions contact: gllpellegrino@gmail.com
+ */
+
+package RAI.transition_clustering;
+
+import RAI.Data;
+import java.util.Arrays;
+
+
+// Binary min heap of transition merges, addressable: every merge stores its own position in the heap,
+// so that it can be removed, or moved after a change of its score, in O(log n).
+public class TransitionMergeQueue<T extends Data<T>> {
+
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TransitionMergeQueue(){
+        heap = (TransitionMerge<T>[]) new TransitionMerge[16];
+        size = 0;
+    }
+
+    public void add(TransitionMerge<T> m){
+        if (size == heap.length)
+            heap = Arrays.copyOf(heap, 2 * size);
+        heap[size] = m;
+        m.setHeapIndex(size);
+        size ++;
+        siftUp(size - 1);
+    }
+
+    public TransitionMerge<T> peek(){
+        return (size == 0)?(null):(heap[0]);
+    }
+
+    public TransitionMerge<T> poll(){
+        if (size == 0)
+            return null;
+        TransitionMerge<T> res = heap[0];
+        removeAt(0);
+        return res;
+    }
+
+    public boolean contains(TransitionMerge<T> m){
+        int i = m.getHeapIndex();
+        return i >= 0 && i < size && heap[i] == m;
+    }
+
+    public boolean remove(TransitionMerge<T> m){
+        if (! contains(m))
+            return false;
+        removeAt(m.getHeapIndex());
+        return true;
+    }
+
+    public void update(TransitionMerge<T> m){
+        // restores the heap order after the score of m has changed (m is added if missing)
+        if (! contains(m))
+            add(m);
+        else if (! siftUp(m.getHeapIndex()))
+            siftDown(m.getHeapIndex());
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+
+    // PRIVATE STUFF
+
+    private void removeAt(int i){
+        TransitionMerge<T> removed = heap[i];
+        size --;
+        if (i != size) {
+            heap[i] = heap[size];
+            heap[i].setHeapIndex(i);
+            if (! siftUp(i))
+                siftDown(i);
+        }
+        heap[size] = null;
+        removed.setHeapIndex(-1);
+    }
+
+    private boolean siftUp(int i){
+        // true if the element in i has moved
+        TransitionMerge<T> m = heap[i];
+        int start = i;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent].compareTo(m) <= 0)
+                break;
+            heap[i] = heap[parent];
+            heap[i].setHeapIndex(i);
+            i = parent;
+        }
+        heap[i] = m;
+        m.setHeapIndex(i);
+        return i != start;
+    }
+
+    private void siftDown(int i){
+        TransitionMerge<T> m = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && heap[child + 1].compareTo(heap[child]) < 0)
+                child ++;
+            if (m.compareTo(heap[child]) <= 0)
+                break;
+            heap[i] = heap[child];
+            heap[i].setHeapIndex(i);
+            i = child;
+        }
+        heap[i] = m;
+        m.setHeapIndex(i);
+    }
+
+
+    private TransitionMerge<T>[] heap;
+    private int size;
+
+
+}
@@ -11,9 +11,12 @@ package RAI.transition_clustering;
 
 import RAI.Data;
 import RAI.State;
-import java.util.Collection;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.NoSuchElementException;
 
 
 public class UnclusteredTransition<T extends Data<T>> implements Transition<T>{
@@ -22,12 +25,15 @@ public class UnclusteredTransition<T extends Data<T>> implements Transition<T>{
     public UnclusteredTransition(State<T> source, State<T> destination) {
         this.source = source;
         this.destination = destination;
-        this.values = new LinkedList<>();
+        this.values = EMPTY;
+        this.size = 0;
         this.mu = 0.;
         this.oldmu = 0.;
         this.sigmasquared = 0.;
         this.oldsigmasquared = 0.;
         this.leftguard = Double.POSITIVE_INFINITY;
+        this.min = Double.POSITIVE_INFINITY;
+        this.max = Double.NEGATIVE_INFINITY;
     }
 
     public UnclusteredTransition(State<T> source, State<T> destination, Double leftguard, Double rightguard){
@@ -35,10 +41,14 @@ public class UnclusteredTransition<T extends Data<T>> implements Transition<T>{
         this.destination = destination;
         this.leftguard = leftguard;
         this.rightguard = rightguard;
+        this.values = EMPTY;
+        this.size = 0;
         this.mu = 0.;
         this.oldmu = 0.;
         this.sigmasquared = 0.;
         this.oldsigmasquared = 0.;
+        this.min = Double.POSITIVE_INFINITY;
+        this.max = Double.NEGATIVE_INFINITY;
     }
 
     public UnclusteredTransition(State<T> source, State<T> destination, double value) {
@@ -46,6 +56,51 @@ public class UnclusteredTransition<T extends Data<T>> implements Transition<T>{
         this.add(value);
     }
 
+    public UnclusteredTransition(State<T> source, State<T> destination, double value, boolean keepValues) {
+        // when keepValues is false, only count, mean, M2, min and max are kept (summary mode)
+        this(source, destination);
+        if (! keepValues)
+            values = null;
+        this.add(value);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        // guards, statistics and (if kept) values, see read
+        out.writeDouble(leftguard);
+        out.writeDouble(rightguard);
+        out.writeDouble(mu);
+        out.writeDouble(sigmasquared);
+        out.writeDouble(oldmu);
+        out.writeDouble(oldsigmasquared);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeInt(size);
+        out.writeBoolean(values != null);
+        if (values != null)
+            for (int i = 0; i < size; i ++)
+                out.writeDouble(values[i]);
+    }
+
+    public static <T extends Data<T>> UnclusteredTransition<T> read(DataInput in, State<T> source, State<T> destination) throws IOException {
+        UnclusteredTransition<T> t = new UnclusteredTransition<>(source, destination);
+        t.leftguard = in.readDouble();
+        t.rightguard = in.readDouble();
+        t.mu = in.readDouble();
+        t.sigmasquared = in.readDouble();
+        t.oldmu = in.readDouble();
+        t.oldsigmasquared = in.readDouble();
+        t.min = in.readDouble();
+        t.max = in.readDouble();
+        t.size = in.readInt();
+        if (in.readBoolean()) {
+            t.values = new double[t.size];
+            for (int i = 0; i < t.size; i ++)
+                t.values[i] = in.readDouble();
+        } else
+            t.values = null;
+        return t;
+    }
+
     public State<T> getSource() {
         return source;
     }
@@ -86,10 +141,117 @@ public class UnclusteredTransition<T extends Data<T>> implements Transition<T>{
         return Math.sqrt(sigmasquared);
     }
 
+    public int size(){
+        return size;
+    }
+
+    public boolean keepsValues(){
+        return values != null;
+    }
+
+    public double get(int i){
+        if (values == null)
+            throw new UnsupportedOperationException("Values are not kept by " + this);
+        if (i >= size)
+            throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+        return values[i];
+    }
+
     public void add(Double value){
-        if (values.isEmpty()){
-            leftguard = value;
-            rightguard = value;
+        if (values != null) {
+            ensureCapacity(size + 1);
+            values[size] = value;
+        }
+        update(value);
+        size ++;
+    }
+
+    public void addAll(Transition<T> t){
+        if (t instanceof ClusteredTransition)
+            t = ((ClusteredTransition<T>) t).getTransition();
+        UnclusteredTransition<T> u = (UnclusteredTransition<T>) t;
+        int n = u.size;
+        if (values == null || u.values == null) {
+            // summary mode: values from u are gone, the two summaries are combined instead
+            values = null;
+            combine(u);
+            return;
+        }
+        ensureCapacity(size + n);
+        System.arraycopy(u.values, 0, values, size, n);
+        // statistics are updated value by value, as if they were added one at a time
+        for (int i = 0; i < n; i ++) {
+            update(values[size]);
+            size ++;
+        }
+    }
+
+    public boolean remove(double value){
+        if (size == 0)
+            return false;
+        if (values != null) {
+            // the oldest occurrence goes away (values are usually removed in the order they came)
+            int i = 0;
+            while (i < size && values[i] != value)
+                i ++;
+            if (i == size)
+                return false;
+            System.arraycopy(values, i + 1, values, i, size - i - 1);
+        }
+        // Welford's update backwards (count, mean and M2 only: min and max stay as they are)
+        if (size == 1) {
+            sigmasquared = 0.;
+        } else {
+            double newmu = mu - (value - mu) / (size - 1.);
+            sigmasquared = Math.max(0., sigmasquared - (value - mu) * (value - newmu));
+            mu = newmu;
+        }
+        oldmu = mu;
+        oldsigmasquared = sigmasquared;
+        size --;
+        return true;
+    }
+
+    private void combine(UnclusteredTransition<T> u){
+        // Chan et al. pairwise update of mean and M2
+        if (u.size == 0)
+            return;
+        if (size == 0) {
+            if (! (leftguard < rightguard)) {
+                leftguard = u.min;
+                rightguard = u.max;
+            }
+            mu = u.mu;
+            sigmasquared = u.sigmasquared;
+        } else {
+            if (u.min < leftguard)
+                leftguard = u.min;
+            if (u.max > rightguard)
+                rightguard = u.max;
+            double n = size + u.size;
+            double delta = u.mu - mu;
+            mu = mu + delta * u.size / n;
+            sigmasquared = sigmasquared + u.sigmasquared + delta * delta * size * u.size / n;
+        }
+        oldmu = mu;
+        oldsigmasquared = sigmasquared;
+        min = Math.min(min, u.min);
+        max = Math.max(max, u.max);
+        size += u.size;
+    }
+
+    private void update(double value){
+        // running guards, mean and variance (Welford), size values already seen
+        if (value < min)
+            min = value;
+        if (value > max)
+            max = value;
+        if (size == 0){
+            // guards already shaped as an interval (a transition emptied by remove) are kept
+            if (! (leftguard < rightguard)) {
+                leftguard = value;
+                rightguard = value;
+            }
             mu = value;
             oldmu = value;
         } else {
@@ -97,17 +259,17 @@ public class UnclusteredTransition<T extends Data<T>> implements Transition<T>{
                 leftguard = value;
             if (value > rightguard)
                 rightguard = value;
-            mu = oldmu + (value - oldmu) / ((double) values.size() + 1);
+            mu = oldmu + (value - oldmu) / ((double) size + 1);
             sigmasquared = oldsigmasquared + (value - oldmu) * (value - mu);
             oldmu = mu;
             oldsigmasquared = sigmasquared;
         }
-        values.add(value);
     }
 
-    public void addAll(Transition<T> t){
-        for (Double v : t)
-            this.add(v);
+    private void ensureCapacity(int capacity){
+        // values grow geometrically, most transitions of a prefix tree hold just one value
+        if (capacity > values.length)
+            values = Arrays.copyOf(values, Math.max(capacity, 2 * values.length));
     }
 
     public double getCloseness(Transition<T> t){
@@ -142,7 +304,25 @@ public class UnclusteredTransition<T extends Data<T>> implements Transition<T>{
 
     @Override
     public Iterator<Double> iterator() {
-        return values.iterator();
+        if (values == null)
+            throw new UnsupportedOperationException("Values are not kept by " + this);
+        return new Iterator<Double>() {
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Double next() {
+                if (next >= size)
+                    throw new NoSuchElementException();
+                return values[next ++];
+            }
+
+            private int next = 0;
+
+        };
     }
 
     @Override
@@ -195,7 +375,11 @@ public class UnclusteredTransition<T extends Data<T>> implements Transition<T>{
     private double sigmasquared;
     private double oldmu;
     private double oldsigmasquared;
-    private Collection<Double> values;
+    private double[] values;
+    private int size;
+    private double min;
+    private double max;
+    private static final double[] EMPTY = new double[0];
 
 
 }
@@ -10,103 +10,175 @@
 package RAI.votingstrategy;
 
 import RAI.Data;
+import RAI.DistanceCache;
 import RAI.Future;
+import RAI.SnapshotInput;
+import RAI.SnapshotOutput;
+import RAI.TailSampler;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 
 public class VotingData implements Data<VotingData> {
 
 
     @Override
-    public void add(String[] values) {
-        Future f = Future.parse(values);
-        tails.add(f);
+    public void add(Future f) {
+        if (! tails.add(f))
+            copies.merge(f, 1, Integer::sum);
     }
 
     @Override
     public void updateWith(VotingData b) {
-        tails.addAll(b.tails);
+        for (Future f : b.tails)
+            add(f);
+        for (Map.Entry<Future, Integer> e : b.copies.entrySet())
+            copies.merge(e.getKey(), e.getValue(), Integer::sum);
+    }
+
+    @Override
+    public void remove(Future f) {
+        Integer extra = copies.get(f);
+        if (extra == null)
+            tails.remove(f);
+        else if (extra > 1)
+            copies.put(f, extra - 1);
+        else
+            copies.remove(f);
     }
 
     @Override
     public Double rankWith(VotingData b) {
         if (tails.isEmpty() && b.tails.isEmpty())
             return 0.;
+        if (sampler != null && (sampler.samples(tails.size()) || sampler.samples(b.tails.size()))) {
+            Double score = sampledRank(b);
+            if (score != null)
+                return score;
+        }
         Double score = 0.;
-        for (Future blueFuture : b.tails){
-            Future redFuture = closestFuture(blueFuture);
-            if (redFuture == null)
-                redFuture = Future.parse(new String[]{"0.0"});
-            Double diffs = closeness(redFuture, blueFuture);
-            int prefixsize = (redFuture.size() < blueFuture.size())?(redFuture.size()):(blueFuture.size());
-            if (diffs > votingThreshold * prefixsize)
-                // this couple is far
+        for (Future blueFuture : b.tails)
+            if (isFar(blueFuture, this))
                 score += 1.;
-        }
-        for (Future redFuture : tails){
-            Future blueFuture = b.closestFuture(redFuture);
-            if (blueFuture == null)
-                blueFuture = Future.parse(new String[]{"0.0"});
-            Double diffs = closeness(blueFuture, redFuture);
-            int prefixsize = (redFuture.size() < blueFuture.size())?(redFuture.size()):(blueFuture.size());
-            if (diffs > votingThreshold * prefixsize)
+        for (Future redFuture : tails)
+            if (isFar(redFuture, b))
                 score += 1.;
-        }
         return score;
     }
 
+    @Override
+    public Double rankLowerBound(VotingData b) {
+        // only the votes of futures far from every future of the other state are counted. Samples are not bounded
+        if ((tails.isEmpty() && b.tails.isEmpty()) || sampler != null)
+            return 0.;
+        return (double) (countSurelyFar(b.tails, this) + countSurelyFar(tails, b));
+    }
+
     @Override
     public boolean isCompatibleWith(VotingData b) {
-        System.out.println(rankWith(b) + " " + votingThreshold * (tails.size() + b.tails.size()));
-        return rankWith(b) <= votingThreshold * (tails.size() + b.tails.size());
+        // voting stops as soon as the votes exceed the limit, or the ones left cannot exceed it
+        double limit = votingThreshold * (tails.size() + b.tails.size());
+        Double score = 0.;
+        int left = tails.size() + b.tails.size();
+        for (Future blueFuture : b.tails) {
+            if (score > limit || score + left <= limit)
+                return score <= limit;
+            if (isFar(blueFuture, this))
+                score += 1.;
+            left --;
+        }
+        for (Future redFuture : tails) {
+            if (score > limit || score + left <= limit)
+                return score <= limit;
+            if (isFar(redFuture, b))
+                score += 1.;
+            left --;
+        }
+        return score <= limit;
+    }
+
+    @Override
+    public boolean isCompatibleWith(VotingData b, Double rank) {
+        if (rank == null)
+            return isCompatibleWith(b);
+        return rank <= votingThreshold * (tails.size() + b.tails.size());
     }
 
     @Override
     public void dispose() {
         tails.clear();
+        copies.clear();
+    }
+
+    @Override
+    public int size() {
+        return tails.size();
+    }
+
+    @Override
+    public void write(SnapshotOutput out) throws IOException {
+        out.writeInt(tails.size());
+        for (Future f : tails) {
+            out.writeFuture(f);
+            out.writeInt(copies.getOrDefault(f, 0));
+        }
+    }
+
+    @Override
+    public void read(SnapshotInput in) throws IOException {
+        // futures are added in the order they were written, so that tails iterate in the same order
+        int n = in.readInt();
+        for (int i = 0; i < n; i ++) {
+            Future f = in.readFuture();
+            tails.add(f);
+            int extra = in.readInt();
+            if (extra > 0)
+                copies.put(f, extra);
+        }
     }
 
     public VotingData(double valueThreshold, double votingThreshold){
+        this(valueThreshold, votingThreshold, null);
+    }
+
+    public VotingData(double valueThreshold, double votingThreshold, DistanceCache cache){
+        this(valueThreshold, votingThreshold, cache, null);
+    }
+
+    public VotingData(double valueThreshold, double votingThreshold, DistanceCache cache, TailSampler sampler){
+        // cache may be null, or shared by all the VotingData instances of the same hypothesis
+        // sampler may be null (exact ranking), or shared as well
+        this.cache = cache;
+        this.sampler = sampler;
         this.valueThreshold = valueThreshold;
         this.votingThreshold = votingThreshold;
         tails = new HashSet<>();
+        copies = new HashMap<>();
     }
 
-    public Double closeness(Future f1, Future f2){
+    public double closeness(Future f1, Future f2){
         if (f1 == null && f2 == null)
             return 0.;
-        if (f1 == null) {
-            String[] values = new String[f2.size()];
-            for (int i = 0; i < f2.size(); i ++)
-                values[i] = "0.0";
-            f1 = Future.parse(values);
-        }
-        if (f2 == null) {
-            String[] values = new String[f1.size()];
-            for (int i = 0; i < f1.size(); i ++)
-                values[i] = "0.0";
-            f2 = Future.parse(values);
-        }
-        Iterator<Double> vs2 = f2.iterator();
-        Double result = 0.;
-        for (Double v1 : f1){
-            if (! vs2.hasNext())
-                break;
-            Double v2 = vs2.next();
-            if (Math.abs(v1 - v2) >= valueThreshold)
-                result += 1.;
+        if (cache == null || f1 == null || f2 == null)
+            return differences(f1, f2);
+        Double d = cache.get(f1, f2);
+        if (d == null) {
+            d = differences(f1, f2);
+            cache.put(f1, f2, d);
         }
-        return result;
-
+        return d;
     }
 
     public Future closestFuture(Future f){
         Future closest = null;
         Double minDist = Double.POSITIVE_INFINITY;
         for (Future r : tails){
-            Double curDist = closeness(r, f);
+            double curDist = closeness(r, f);
             if (curDist < minDist){
                 closest = r;
                 minDist = curDist;
@@ -116,8 +188,121 @@ public class VotingData implements Data<VotingData> {
     }
 
 
+    // PRIVATE STUFF
+
+    private boolean isFar(Future f, VotingData other){
+        // does f vote against the merge, being far from its closest future in other?
+        Future closest = other.closestFuture(f);
+        if (closest == null)
+            closest = ZERO;
+        double diffs = closeness(closest, f);
+        int prefixsize = (closest.size() < f.size())?(closest.size()):(f.size());
+        return diffs > votingThreshold * prefixsize;
+    }
+
+    private int countSurelyFar(Set<Future> futures, VotingData other){
+        // lower bound on the futures voting against the merge, in linear time: f surely differs from every future
+        // of other at position i when f(i) is at least valueThreshold away from the range of their values there
+        if (other.tails.isEmpty()) {
+            int res = 0;
+            for (Future f : futures)
+                if (isFar(f, other))
+                    res += 1;
+            return res;
+        }
+        int maxSize = 0;
+        for (Future g : other.tails)
+            maxSize = Math.max(maxSize, g.size());
+        double[] lowest = new double[maxSize];
+        double[] highest = new double[maxSize];
+        Arrays.fill(lowest, Double.POSITIVE_INFINITY);
+        Arrays.fill(highest, Double.NEGATIVE_INFINITY);
+        TreeSet<Integer> sizes = new TreeSet<>();
+        for (Future g : other.tails) {
+            sizes.add(g.size());
+            for (int i = 0; i < g.size(); i ++) {
+                // a NaN makes the range NaN, hence that position never counts
+                lowest[i] = Math.min(lowest[i], g.get(i));
+                highest[i] = Math.max(highest[i], g.get(i));
+            }
+        }
+        int res = 0;
+        int[] differences = new int[maxSize + 1];
+        for (Future f : futures) {
+            // differences[p]: positions below p where f surely differs
+            int n = Math.min(f.size(), maxSize);
+            for (int i = 0; i < n; i ++) {
+                double v = f.get(i);
+                boolean differs = lowest[i] - v >= valueThreshold || v - highest[i] >= valueThreshold;
+                differences[i + 1] = differences[i] + ((differs)?(1):(0));
+            }
+            // f is far from every future of other, whatever their common prefix
+            boolean far = true;
+            for (int size : sizes) {
+                int prefixsize = Math.min(size, f.size());
+                if (! (differences[prefixsize] > votingThreshold * prefixsize)) {
+                    far = false;
+                    break;
+                }
+            }
+            if (far)
+                res += 1;
+        }
+        return res;
+    }
+
+    private Double sampledRank(VotingData b){
+        // votes estimated over samples of both sides, null when the estimate is too close to the threshold
+        int nr = tails.size();
+        int nb = b.tails.size();
+        int hitsB = 0;
+        int drawnB = 0;
+        for (Future f : sampler.sample(b.tails, nb)) {
+            drawnB ++;
+            if (isFar(f, this))
+                hitsB ++;
+        }
+        int hitsR = 0;
+        int drawnR = 0;
+        for (Future f : sampler.sample(tails, nr)) {
+            drawnR ++;
+            if (isFar(f, b))
+                hitsR ++;
+        }
+        double score = TailSampler.estimate(hitsB, drawnB, nb) + TailSampler.estimate(hitsR, drawnR, nr);
+        double stdError = Math.sqrt(TailSampler.variance(hitsB, drawnB, nb) + TailSampler.variance(hitsR, drawnR, nr));
+        if (! sampler.isFarFrom(score, stdError, votingThreshold * (nr + nb)))
+            return null;
+        return score;
+    }
+
+    private double differences(Future f1, Future f2){
+        // a missing future is compared as a sequence of zeros
+        int n;
+        if (f1 == null)
+            n = f2.size();
+        else if (f2 == null)
+            n = f1.size();
+        else
+            n = Math.min(f1.size(), f2.size());
+        double result = 0.;
+        for (int i = 0; i < n; i ++){
+            double v1 = (f1 == null)?(0.):(f1.get(i));
+            double v2 = (f2 == null)?(0.):(f2.get(i));
+            if (Math.abs(v1 - v2) >= valueThreshold)
+                result += 1.;
+        }
+        return result;
+
+    }
+
+    private static final Future ZERO = new Future(new double[]{0.});
     private Set<Future> tails;
+    // duplicates of futures in tails (just their number beyond the first one)
+    private Map<Future, Integer> copies;
     private double valueThreshold;
     private double votingThreshold;
+    private final DistanceCache cache;
+    private final TailSampler sampler;
 
 }
@@ -10,21 +10,46 @@
 package RAI.votingstrategy;
 
 import RAI.DataBuilder;
+import RAI.DistanceCache;
+import RAI.TailSampler;
 
 
 public class VotingDataBuilder implements DataBuilder<VotingData> {
 
     public VotingDataBuilder(double valueThreshold, double votingThreshold){
+        this(valueThreshold, votingThreshold, 0);
+    }
+
+    public VotingDataBuilder(double valueThreshold, double votingThreshold, int cacheSize){
+        // with cacheSize > 0, all the instances share a cache of distances between futures
         this.valueThreshold = valueThreshold;
         this.votingThreshold = votingThreshold;
+        cache = (cacheSize > 0)?(new DistanceCache(cacheSize)):(null);
     }
 
     @Override
     public VotingData createInstance() {
-        return new VotingData(valueThreshold, votingThreshold);
+        return new VotingData(valueThreshold, votingThreshold, cache, sampler);
+    }
+
+    public void setSampling(int sampleSize, long seed){
+        setSampling(sampleSize, seed, DEFAULT_MARGIN);
+    }
+
+    public void setSampling(int sampleSize, long seed, double margin){
+        // merges are ranked over samples of at most sampleSize tails per state, and exactly when the estimated
+        // votes lie within margin standard errors from the voting threshold. It affects the instances created afterwards
+        sampler = (sampleSize > 0)?(new TailSampler(sampleSize, seed, margin)):(null);
+    }
+
+    public DistanceCache getCache() {
+        return cache;
     }
 
     private double votingThreshold;
     private double valueThreshold;
+    private DistanceCache cache;
+    private TailSampler sampler;
+    private static final double DEFAULT_MARGIN = 3.;
 
 }